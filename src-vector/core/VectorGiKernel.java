@@ -0,0 +1,90 @@
+package core;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Computes the Getis-Ord statistic with the Vector API, as many cells per instruction as a double vector of the
+ * preferred shape holds. Whole number neighbourhood sums are loaded as an int vector of the same lane count and
+ * widened.
+ * The arithmetic is the same as that of {@link GiKernel}, lane by lane, so the results are identical.
+ */
+public class VectorGiKernel extends GiKernel {
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+    public VectorGiKernel() {
+        if (DOUBLES.length() < 2) {
+            throw new IllegalStateException("No vector shape holding more than one double");
+        }
+    }
+
+    @Override
+    public String name() {
+        return "vector " + DOUBLES.length() + "x double";
+    }
+
+    @Override
+    public void compute(int[] sumWijXj, double[] gi, int offset, double[] sumWij, double[] deviation,
+                        double xbar, double S, double[] range) {
+        DoubleVector max = DoubleVector.broadcast(DOUBLES, range[0]);
+        DoubleVector min = DoubleVector.broadcast(DOUBLES, range[1]);
+        int lanes = DOUBLES.length(), cells = sumWij.length;
+        int i = 0;
+        for (; i <= cells - lanes; i += lanes) {
+            DoubleVector sums = (DoubleVector) IntVector.fromArray(INTS, sumWijXj, offset + i)
+                    .convertShape(VectorOperators.I2D, DOUBLES, 0);
+            DoubleVector value = statistic(sums, sumWij, deviation, i, xbar, S);
+            value.intoArray(gi, offset + i);
+            max = max.max(value);
+            min = min.min(value);
+        }
+        range[0] = max.reduceLanes(VectorOperators.MAX);
+        range[1] = min.reduceLanes(VectorOperators.MIN);
+
+        // Cells that do not fill a whole vector
+        for (; i < cells; i++) {
+            double value = (sumWijXj[offset + i] - xbar * sumWij[i]) / (S * deviation[i]);
+            gi[offset + i] = value;
+            range[0] = Math.max(range[0], value);
+            range[1] = Math.min(range[1], value);
+        }
+    }
+
+    @Override
+    public void compute(double[] sumWijXj, double[] gi, int offset, double[] sumWij, double[] deviation,
+                        double xbar, double S, double[] range) {
+        DoubleVector max = DoubleVector.broadcast(DOUBLES, range[0]);
+        DoubleVector min = DoubleVector.broadcast(DOUBLES, range[1]);
+        int lanes = DOUBLES.length(), cells = sumWij.length;
+        int i = 0;
+        for (; i <= cells - lanes; i += lanes) {
+            DoubleVector sums = DoubleVector.fromArray(DOUBLES, sumWijXj, offset + i);
+            DoubleVector value = statistic(sums, sumWij, deviation, i, xbar, S);
+            value.intoArray(gi, offset + i);
+            max = max.max(value);
+            min = min.min(value);
+        }
+        range[0] = max.reduceLanes(VectorOperators.MAX);
+        range[1] = min.reduceLanes(VectorOperators.MIN);
+
+        // Cells that do not fill a whole vector
+        for (; i < cells; i++) {
+            double value = (sumWijXj[offset + i] - xbar * sumWij[i]) / (S * deviation[i]);
+            gi[offset + i] = value;
+            range[0] = Math.max(range[0], value);
+            range[1] = Math.min(range[1], value);
+        }
+    }
+
+    private static DoubleVector statistic(DoubleVector sums, double[] sumWij, double[] deviation, int i,
+                                          double xbar, double S) {
+        DoubleVector w = DoubleVector.fromArray(DOUBLES, sumWij, i);
+        DoubleVector below = DoubleVector.fromArray(DOUBLES, deviation, i).mul(S);
+        return sums.sub(w.mul(xbar)).div(below);
+    }
+}
@@ -53,13 +53,13 @@ public class CSVReader {
         listeners.add(s);
     }
 
-    private static void done() {
+    static void done() {
         for (TripListener tl : listeners) {
             tl.done();
         }
     }
 
-    private static void broadcast(Trip t) {
+    static void broadcast(Trip t) {
         for (TripListener tl : listeners) {
             tl.newTrip(t);
         }
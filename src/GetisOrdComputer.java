@@ -1,179 +1,706 @@
-import core.Location;
-import core.SpaceTimeCube;
+import core.DoubleCube;
+import core.DoubleSpaceTimeCube;
+import core.GiKernel;
+import core.IntCube;
+import core.IntSpaceTimeCube;
+import core.Neighbourhood;
+import core.PermutationTest;
+import core.Slabs;
+import core.Weights;
+import core.SparseDoubleSpaceTimeCube;
+import core.SparseIntSpaceTimeCube;
 import core.Trip;
+import core.TripBatch;
 
 import java.io.*;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Created by ruudandriessen on 21/02/2017.
  */
-public class GetisOrdComputer implements TripListener {
-    private int count = 0;
+public class GetisOrdComputer implements MergeableTripListener {
+    // Slices of 3.2 hours, the 225 slices January 2016 used to be split into
+    static final long DEFAULT_SLICE = 11520000;
+    // Cells of about 90 by 90 metres, roughly a city block, and slices of 15 minutes, see cityBlocks()
+    private static final int CITY_BLOCK_CELLS = 500;
+    private static final long QUARTER_HOUR = 15L * 60 * 1000;
+    // A single trip may extend the time axis by at most this much, trips further out are seen as invalid data
+    private static final long MAX_GROWTH = 31L * 24 * 60 * 60 * 1000;
+    // Trips more than this much outside of the time range being read are seen as invalid data
+    private static final long TIME_SLACK = 24L * 60 * 60 * 1000;
+    // Number of trips whose median pickup the time axis starts at, when the time range being read is not known
+    private static final int TIME_SAMPLE = 1000;
+    // Sparse cubes larger than this are not written out, the chunks would not be usable
+    private static final long MAX_WRITTEN_CELLS = 250000000;
+    // Directory the statistic is written to, see SliceWriter
+    static final String RESULTS = "results";
 
+    private int count = 0;
 
-    private SpaceTimeCube<GetisOrdData> stc;
+    // Number of pickups and dropoffs per cell, and the statistic once computed
+    private IntCube counts;
+    private DoubleCube g;
+    private final boolean sparse;
+    private final Weights weights;
+    private final GiKernel kernel = GiKernel.best();
+    // Number of threads computing the statistic, 1 computes it in the calling thread
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    // Number of permutations the significance of the statistic is tested with, 0 to not test it
+    private int permutations = 0;
+    private double fdr;
+    private long seed;
+    // Whether done() writes the results, a computer that is queried in memory does not
+    private boolean writeResults = true;
     private double latMin = 40.9, latMax = 40.5, lonMin = -74.25, lonMax = -73.7;
-    private long timeDmin, timeDmax;
+    // Start of the time axis, initially the start of the day of the time range, or of the median of the first trips
+    private long timeDmin;
+    private boolean timeKnown = false;
+    // Times the trips are expected in, see setTimeRange; timeMax is exclusive
+    private long timeMin, timeMax;
+    private boolean timeRange = false;
+    // The first trips, held back until the start of the time axis is known when there is no time range
+    private Partial held = new Partial();
+    // Number of trips left out because their times are invalid
+    private long timeOutliers = 0;
 
-    // Date format
-    private SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
     private double lonDelta, latDelta, timeDelta;
-    private int xSize = 225, ySize = 225, zSize = 225;
+    private int xSize, ySize, zSize = 0;
+    private final int maxGrowth;
+    private final int[] pickupTile = new int[2], dropoffTile = new int[2];
 
     GetisOrdComputer() {
-        // Define bounds of the data
-        String timeMin = "01/01/2016", timeMax = "31/01/2016";
+        this(DEFAULT_SLICE);
+    }
+
+    /**
+     * Creates a computer whose time axis grows with the trips seen, see {@link #setTimeRange}.
+     * @param slice The duration of a time slice in milliseconds
+     */
+    GetisOrdComputer(long slice) {
+        this(225, 225, slice, Weights.binary(Neighbourhood.CUBE_3), false);
+    }
+
+    /**
+     * Creates a computer whose time axis grows with the trips seen, see {@link #setTimeRange}.
+     * @param xSize The number of cells along the latitude axis
+     * @param ySize The number of cells along the longitude axis
+     * @param slice The duration of a time slice in milliseconds
+     * @param weights The weights of the cells around a cell the statistic of that cell is computed over
+     * @param sparse Whether to only store the cells that see trips, which allows for resolutions (such as city
+     *               blocks and 15 minutes) whose dense cube would not fit in memory
+     */
+    GetisOrdComputer(int xSize, int ySize, long slice, Weights weights, boolean sparse) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.weights = weights;
+        this.sparse = sparse;
 
         // Parse location delta
         latDelta = (latMax - latMin)/xSize;
         lonDelta = (lonMax - lonMin)/ySize;
 
-        // Parse time delta
-        try {
-            timeDmin = sdf.parse(timeMin).getTime();
-            timeDmax = sdf.parse(timeMax).getTime();
-            timeDelta = (timeDmax - timeDmin)/zSize;
-        } catch (ParseException e) {
-            e.printStackTrace();
+        timeDelta = slice;
+        maxGrowth = (int) Math.max(1, MAX_GROWTH / slice);
+
+        // Create empty STC, slices are added as trips come in
+        counts = sparse
+                ? new SparseIntSpaceTimeCube(xSize, ySize, zSize)
+                : new IntSpaceTimeCube(xSize, ySize, zSize);
+    }
+
+    /**
+     * Creates a computer of city block cells and 15 minute slices on a sparse cube, a resolution whose dense cube
+     * would not fit in memory.
+     */
+    static GetisOrdComputer cityBlocks() {
+        return new GetisOrdComputer(CITY_BLOCK_CELLS, CITY_BLOCK_CELLS, QUARTER_HOUR,
+                Weights.binary(Neighbourhood.CUBE_3), true);
+    }
+
+    /**
+     * Sets the number of threads the statistic is computed with. The results do not depend on it.
+     * @param parallelism The number of threads, 1 to compute in the calling thread
+     */
+    void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, got " + parallelism);
         }
+        this.parallelism = parallelism;
+    }
 
-        // Create empty STC
-        stc = new SpaceTimeCube<>(xSize, ySize, zSize);
-        for (int x = 0; x < xSize; x++) {
-            for (int y = 0; y < ySize; y++) {
-                for (int z = 0; z < zSize; z++) {
-                    stc.set(x, y, z, new GetisOrdData());
-                }
-            }
+    /**
+     * Tests the statistic of every cell for significance once it is computed, see {@link PermutationTest}. The
+     * pseudo p-values are written as layer "p" and the significant hot (1) and cold (-1) spots as layer "hotspot",
+     * next to the statistic. Only dense cubes are tested. Every thread shuffles a copy of the cube, so this
+     * takes about 24 bytes per cell per thread.
+     * @param permutations The number of permutations, for example 999, or 0 to not test
+     * @param fdr The false discovery rate over all cells, for example 0.05
+     * @param seed The seed of the permutations
+     */
+    void setSignificance(int permutations, double fdr, long seed) {
+        if (permutations < 0) {
+            throw new IllegalArgumentException("Invalid number of permutations " + permutations);
         }
+        if (permutations > 0 && !(fdr > 0 && fdr < 1)) {
+            throw new IllegalArgumentException("Invalid false discovery rate " + fdr);
+        }
+        this.permutations = permutations;
+        this.fdr = fdr;
+        this.seed = seed;
     }
 
-    private int[] cubeMap(Location location, Date time) throws IllegalArgumentException {
-        double lat = location.latitude();
-        double lon = location.longitude();
-        long lTime = time.getTime();
+    /**
+     * Sets the times the trips are expected in, such as the months of the files being read (see
+     * {@link MultiFileReader#months}). The time axis starts at the day of min, and trips more than a day outside of
+     * the range are left out as invalid data. Without a range the axis starts at the day of the median pickup of the
+     * first trips, and a trip may grow it by at most a month.
+     * @param min The start of the range in milliseconds since the epoch
+     * @param max The end of the range (exclusive)
+     */
+    void setTimeRange(long min, long max) {
+        if (!(min < max)) {
+            throw new IllegalArgumentException("Empty time range");
+        }
+        if (timeKnown || held.size > 0) {
+            throw new IllegalStateException("The time range must be set before the first trip");
+        }
+        timeMin = min;
+        timeMax = max;
+        timeRange = true;
+    }
+
+    /**
+     * @param writeResults Whether the results are written to {@link #RESULTS} once computed
+     */
+    void setWriteResults(boolean writeResults) {
+        this.writeResults = writeResults;
+    }
+
+    /**
+     * @return The statistic of every cell, null until {@link #done()} computed it
+     */
+    DoubleCube statistic() {
+        return g;
+    }
+
+    /**
+     * @return The number of pickups and dropoffs of every cell
+     */
+    IntCube counts() {
+        return counts;
+    }
+
+    /**
+     * Finds the cell of a location and time.
+     * @param cell Receives the x, y and z of the cell
+     * @return False if the location or time lies outside of the cube
+     */
+    boolean cell(double lat, double lon, long time, int[] cell) {
+        if (!cubeMap(lat, lon, cell)) {
+            return false;
+        }
+        cell[2] = slice(time);
+        return cell[2] >= 0;
+    }
+
+    /**
+     * @return The slice holding a time, or -1 if the time lies outside of the cube
+     */
+    int slice(long time) {
+        if (!timeKnown) {
+            return -1;
+        }
+        int z = timeMap(time);
+        return z >= 0 && z < zSize ? z : -1;
+    }
+
+    /**
+     * @return The start of a slice in milliseconds since the epoch
+     */
+    long sliceStart(int z) {
+        return (long) (timeDelta * z + timeDmin);
+    }
+
+    /**
+     * @return The latitude of the centre of the cells at x
+     */
+    double latitude(int x) {
+        return latMin + (x + 0.5) * latDelta;
+    }
 
-        int[] loc = new int[3];
+    /**
+     * @return The longitude of the centre of the cells at y
+     */
+    double longitude(int y) {
+        return lonMin + (y + 0.5) * lonDelta;
+    }
 
+    /**
+     * Finds the cube tile of a location.
+     * @param loc Receives the x and y of the tile
+     * @return False if the location lies outside of the cube
+     */
+    private boolean cubeMap(double lat, double lon, int[] loc) {
         loc[0] = (int) Math.floor((lat-latMin) / latDelta);
         loc[1] = (int) Math.floor((lon-lonMin) / lonDelta);
-        loc[2] = (int) Math.floor((lTime-timeDmin) / timeDelta);
 
-        if (loc[0] < 0 || loc[0] >= xSize || loc[1] < 0 || loc[1] >= ySize || loc[2] < 0 || loc[2] >= zSize ) {
-            // Invalid trip
-            throw new IllegalArgumentException("Invalid trip");
-        }
-        return loc;
+        return loc[0] >= 0 && loc[0] < xSize && loc[1] >= 0 && loc[1] < ySize;
     }
 
-    private void writeJson() {
-        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
-                new FileOutputStream("results.json"), "utf-8"))) {
-            writer.write("{");
-            for (int z = 0; z < zSize; z++) {
-                long time = (long) (timeDelta * z + timeDmin);
-                writer.write("\"" + time + "\": [");
-                for (int x = 0; x < xSize; x++) {
-                    for (int y = 0; y < ySize; y++) {
-                        GetisOrdData value = stc.get(x,y,z);
-                        writer.write(value.g + (xSize-1 == x && ySize-1 == y ? "" : ","));
-                    }
-                }
-                writer.write("]" + (zSize - 1 == z ? "" : ","));
-            }
-            writer.write("}");
+    /**
+     * @return The time slice of a time, which may lie before the start or beyond the end of the cube
+     */
+    private int timeMap(long time) {
+        double z = Math.floor((time-timeDmin) / timeDelta);
+        return (int) Math.max(-Integer.MAX_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, z));
+    }
 
-        } catch (Exception e) {
-            System.out.println(e.toString());
+    /**
+     * Adds empty slices to the end of the cube until it holds the given number of slices.
+     */
+    private void growTime(int slices) {
+        if (slices <= zSize) {
+            return;
         }
+        counts.growZ(slices);
+        zSize = slices;
+    }
+
+    /**
+     * Adds empty slices to the front of the cube, moving the start of the time axis back.
+     */
+    private void prependTime(int slices) {
+        counts.prependZ(slices);
+        zSize += slices;
+        timeDmin -= (long) (slices * timeDelta);
     }
 
     @Override
     public void done() {
+        if (!timeKnown && held.size > 0) {
+            startTime();
+        }
+        if (timeOutliers > 0) {
+            System.out.println("Left out " + timeOutliers + " trips with invalid times");
+        }
+
         // Computing getis ord
-        System.out.println("Computing Getis-Ord statistic");
-        double max = -5000000, min = 1000000000;
-
-        double sumXj = 0;
-        double sumXj2 = 0;
-        int sumWij = 27;
-        int sumWij2 = 27;
-        int n = (xSize * ySize * zSize);
-        for (int x = 0; x < xSize; x++) {
-            for (int y = 0; y < ySize; y++) {
-                for (int z = 0; z < zSize; z++) {
-                    GetisOrdData god = stc.get(x, y, z);
-                    sumXj += god.x;
-                    sumXj2 += (god.x * god.x);
-                }
+        System.out.println("Computing Getis-Ord statistic (" + weights + " weights, " + kernel.name() + " kernel)");
+        ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        try {
+            compute(pool);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
             }
         }
+    }
+
+    /**
+     * Computes the statistic of every cell and writes the results.
+     * @param pool The pool to compute on, or null to compute in the calling thread
+     */
+    private void compute(ForkJoinPool pool) {
+        // Counts are integers, so the sums are exact and do not depend on the order they are added in
+        long[] sums = sparse ? sparseSums() : denseSums(pool);
+        double sumXj = sums[0];
+        double sumXj2 = sums[1];
+        long n = ((long) xSize * ySize * zSize);
         double xbar = sumXj/n;
         double S = Math.sqrt(sumXj2/n - xbar * xbar);
+        Weights.Tables tables = weights.tables(xSize, ySize, zSize);
 
-        for (int x = 0; x < xSize; x++) {
+        if (sparse) {
+            computeSparse(tables, xbar, S);
+            if (permutations > 0) {
+                System.out.println("Not testing significance, permutations need a dense cube");
+            }
+            if (n > MAX_WRITTEN_CELLS) {
+                System.out.println("Not writing the statistic of " + n + " cells");
+                return;
+            }
+            if (writeResults) {
+                write(null, 0);
+            }
+            return;
+        }
+
+        // Neighbourhood sums of all cells at once, in a few passes over the cube. Binary weights give whole
+        // numbers, which are summed exactly with running sums.
+        IntSpaceTimeCube cube = (IntSpaceTimeCube) counts;
+        int[] boxSums = weights.isBinary() ? weights.neighbourhood.sum(cube, pool).array() : null;
+        double[] weightedSums = weights.isBinary() ? null : weights.sum(cube, pool);
+        DoubleSpaceTimeCube result = new DoubleSpaceTimeCube(xSize, ySize, zSize);
+        double[] gi = result.array();
+        int sliceSize = xSize * ySize;
+        int[] bounds = Slabs.split(pool, 0, zSize, 1);
+        double[] slabMax = new double[bounds.length - 1], slabMin = new double[bounds.length - 1];
+        Slabs.run(pool, bounds, (slab, from, to) -> {
+            double[] range = {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+            for (int z = from; z < to; z++) {
+                if (boxSums != null) {
+                    kernel.compute(boxSums, gi, z * sliceSize, tables.sumWij(z), tables.deviation(z), xbar, S,
+                            range);
+                } else {
+                    kernel.compute(weightedSums, gi, z * sliceSize, tables.sumWij(z), tables.deviation(z), xbar, S,
+                            range);
+                }
+            }
+            slabMax[slab] = range[0];
+            slabMin[slab] = range[1];
+        });
+        double max = Double.NEGATIVE_INFINITY, min = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < slabMax.length; i++) {
+            max = Math.max(max, slabMax[i]);
+            min = Math.min(min, slabMin[i]);
+        }
+        g = result;
+        System.out.println("max: " + max + " , min: " + min);
+
+        PermutationTest.Result significance = null;
+        double cutoff = 0;
+        if (permutations > 0) {
+            significance = testSignificance(cube, weightedSums != null ? weightedSums : weights.sum(cube, pool),
+                    tables, xbar, pool);
+            cutoff = significance.cutoff(fdr);
+        }
+        if (writeResults) {
+            write(significance, cutoff);
+        }
+    }
+
+    /**
+     * Writes the statistic, and the outcome of the significance test if there is one, to {@link #RESULTS}. The
+     * statistic and the counts are also written as tile pyramids.
+     * @param significance The outcome of the significance test, or null
+     * @param cutoff The largest significant p-value
+     */
+    private void write(PermutationTest.Result significance, double cutoff) {
+        long start = System.nanoTime();
+        try {
+            SliceWriter writer = new SliceWriter(Paths.get(RESULTS), xSize, ySize, zSize, timeDmin,
+                    (long) timeDelta, latMin, latMax, lonMin, lonMax);
+            writer.write("gi", g::get);
+            writer.writeTiles("gi", g::get, TilePyramid.Aggregate.MAX);
+            writer.writeTiles("count", counts::get, TilePyramid.Aggregate.SUM);
+            if (significance != null) {
+                writer.write("p", significance::p);
+                writer.write("hotspot", (x, y, z) -> significance.spot(x, y, z, cutoff));
+            }
+            writer.writeManifest();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Written to " + RESULTS + " (" + (System.nanoTime() - start) / 1000000 + " ms)");
+    }
+
+    /**
+     * Tests the statistic of every cell for significance.
+     * @param sums The weighted neighbourhood sums of the cells
+     */
+    private PermutationTest.Result testSignificance(IntSpaceTimeCube cube, double[] sums, Weights.Tables tables,
+                                                    double xbar, ForkJoinPool pool) {
+        System.out.println("Testing significance with " + permutations + " permutations");
+        long start = System.nanoTime();
+        PermutationTest.Result result = new PermutationTest(weights, permutations, seed)
+                .run(cube, sums, tables, xbar, pool);
+        double cutoff = result.cutoff(fdr);
+        int[] spots = new int[3];
+        for (int z = 0; z < zSize; z++) {
             for (int y = 0; y < ySize; y++) {
-                for (int z = 0; z < zSize; z++) {
-                    double sumWijXj = 0;
-
-                    // calculate sumwij2
-                    sumWijXj = 0;
-                    for (int xp = Math.max(0, x-1); xp < Math.min(xSize, x+1); xp++) {
-                        for (int yp = Math.max(0, y-1); yp < Math.min(ySize, y+1); yp++) {
-                            for (int zp = Math.max(0, z-1); zp < Math.min(zSize, z+1); zp++) {
-                                sumWijXj += stc.get(xp, yp, zp).x;
-                            }
-                        }
-                    }
+                for (int x = 0; x < xSize; x++) {
+                    spots[result.spot(x, y, z, cutoff) + 1]++;
+                }
+            }
+        }
+        System.out.println((cutoff > 0 ? "p <= " + cutoff : "No cell significant") + " at false discovery rate "
+                + fdr + ": " + spots[2] + " hot spots, " + spots[0] + " cold spots ("
+                + (System.nanoTime() - start) / 1000000 + " ms)");
+        return result;
+    }
 
-                    double above = sumWijXj - xbar * sumWij;
-                    double below = S * Math.sqrt( (n * sumWij2 - sumWij*sumWij ) / (n-1) );
+    /**
+     * @return The sum of the counts and the sum of their squares, summed per z slab
+     */
+    private long[] denseSums(ForkJoinPool pool) {
+        int[] cells = ((IntSpaceTimeCube) counts).array();
+        int sliceSize = xSize * ySize;
+        int[] bounds = Slabs.split(pool, 0, zSize, 1);
+        long[] slabSums = new long[2 * (bounds.length - 1)];
+        Slabs.run(pool, bounds, (slab, from, to) -> {
+            long sum = 0, sum2 = 0;
+            for (int i = from * sliceSize; i < to * sliceSize; i++) {
+                long xj = cells[i];
+                sum += xj;
+                sum2 += xj * xj;
+            }
+            slabSums[2 * slab] = sum;
+            slabSums[2 * slab + 1] = sum2;
+        });
+        long[] sums = new long[2];
+        for (int i = 0; i < slabSums.length; i += 2) {
+            sums[0] += slabSums[i];
+            sums[1] += slabSums[i + 1];
+        }
+        return sums;
+    }
+
+    /**
+     * @return The sum of the counts and the sum of their squares, over the cells that saw trips
+     */
+    private long[] sparseSums() {
+        long[] sums = new long[2];
+        counts.forEachNonZero((x, y, z, xj) -> {
+            sums[0] += xj;
+            sums[1] += (long) xj * xj;
+        });
+        return sums;
+    }
 
-                    stc.get(x, y, z).g = above / below;
-                    if (above/below > max) {
-                        max = above/below;
-                    } else if (above/below < min) {
-                        min = above/below;
+    /**
+     * Computes the statistic touching only the cells near trips. Every cell adds its weighted count to the
+     * neighbourhood sums of the cells whose neighbourhood it is part of. Cells without trips in their neighbourhood
+     * have a sum of 0, their statistic only depends on the weights and is computed when asked for.
+     */
+    private void computeSparse(Weights.Tables tables, double xbar, double S) {
+        SparseDoubleSpaceTimeCube sums = new SparseDoubleSpaceTimeCube(xSize, ySize, zSize);
+        int rx = weights.neighbourhood.rx, ry = weights.neighbourhood.ry, rz = weights.neighbourhood.rz;
+        counts.forEachNonZero((x, y, z, xj) -> {
+            // A cell is part of the neighbourhoods of the cells in its own neighbourhood
+            for (int xq = Math.max(0, x - rx); xq <= Math.min(xSize - 1, x + rx); xq++) {
+                for (int yq = Math.max(0, y - ry); yq <= Math.min(ySize - 1, y + ry); yq++) {
+                    for (int zq = Math.max(0, z - rz); zq <= Math.min(zSize - 1, z + rz); zq++) {
+                        sums.add(xq, yq, zq, weights.weight(x - xq, y - yq, z - zq) * xj);
                     }
                 }
             }
+        });
+
+        SparseResult result = new SparseResult(sums, tables, xbar, S);
+        double[] range = {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+        sums.forEachSet((x, y, z, sumWijXj) -> {
+            double value = result.get(x, y, z);
+            range[0] = Math.max(range[0], value);
+            range[1] = Math.min(range[1], value);
+        });
+        // Statistic of the cells without trips nearby, for every set of weight tables
+        double[] previous = null;
+        for (int z = 0; z < zSize; z++) {
+            double[] sumWij = tables.sumWij(z), deviation = tables.deviation(z);
+            if (sumWij == previous) {
+                continue;
+            }
+            previous = sumWij;
+            for (int i = 0; i < sumWij.length; i++) {
+                double value = -xbar * sumWij[i] / (S * deviation[i]);
+                range[0] = Math.max(range[0], value);
+                range[1] = Math.min(range[1], value);
+            }
+        }
+        g = result;
+        System.out.println("max: " + range[0] + " , min: " + range[1] + " (" + sums.bricks() + " bricks)");
+    }
+
+    /**
+     * The statistic of a sparse cube, computed from the neighbourhood sums when asked for.
+     */
+    private static class SparseResult implements DoubleCube {
+        private final SparseDoubleSpaceTimeCube sums;
+        private final Weights.Tables tables;
+        private final double xbar, S;
+
+        SparseResult(SparseDoubleSpaceTimeCube sums, Weights.Tables tables, double xbar, double S) {
+            this.sums = sums;
+            this.tables = tables;
+            this.xbar = xbar;
+            this.S = S;
+        }
+
+        @Override
+        public int xSize() {
+            return sums.xSize();
+        }
+
+        @Override
+        public int ySize() {
+            return sums.ySize();
+        }
+
+        @Override
+        public int zSize() {
+            return sums.zSize();
+        }
+
+        @Override
+        public double get(int x, int y, int z) {
+            int i = x + tables.xSize * y;
+            return (sums.get(x, y, z) - xbar * tables.sumWij(z)[i]) / (S * tables.deviation(z)[i]);
         }
-        System.out.println("max: " + max + " , min: " + min);
-        writeJson();
     }
 
     @Override
     public void newTrip(Trip t) {
+        progress();
+        addTrip(t.pickup_location.latitude(), t.pickup_location.longitude(), t.pickup_datetime.getTime(),
+                t.dropoff_location.latitude(), t.dropoff_location.longitude(), t.dropoff_datetime.getTime());
+    }
+
+    @Override
+    public void newTrips(TripBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            progress();
+            addTrip(batch.pickup_latitude[i], batch.pickup_longitude[i], batch.pickup_datetime[i],
+                    batch.dropoff_latitude[i], batch.dropoff_longitude[i], batch.dropoff_datetime[i]);
+        }
+    }
+
+    private void progress() {
         count++;
 
         if (count % 100000 == 0) {
             System.out.println(count);
         }
+    }
 
-        int[] pickupTile, dropoffTile;
-        try {
-            // Try to find the location
-            Location pickup = t.pickup_location;
-            Date pickup_time = t.pickup_datetime;
-            pickupTile = cubeMap(pickup, pickup_time);
-
-            Date dropoff_time = t.dropoff_datetime;
-            Location dropoff = t.dropoff_location;
-            dropoffTile = cubeMap(dropoff, dropoff_time);
-        } catch (IllegalArgumentException e ) {
+    private void addTrip(double pickupLat, double pickupLon, long pickupTime,
+                         double dropoffLat, double dropoffLon, long dropoffTime) {
+        if (!cubeMap(pickupLat, pickupLon, pickupTile) || !cubeMap(dropoffLat, dropoffLon, dropoffTile)) {
             // Trip has invalid data
             return;
         }
+        addTrip(pickupTile[0], pickupTile[1], pickupTime, dropoffTile[0], dropoffTile[1], dropoffTime);
+    }
 
-        // Get the current data
-        GetisOrdData pickupData = stc.get(pickupTile);
-        GetisOrdData dropOffData = stc.get(dropoffTile);
+    private void addTrip(int pickupX, int pickupY, long pickupTime, int dropoffX, int dropoffY, long dropoffTime) {
+        if (!timeKnown) {
+            if (!timeRange) {
+                held.add(pickupX, pickupY, pickupTime, dropoffX, dropoffY, dropoffTime);
+                if (held.size >= 4 * TIME_SAMPLE) {
+                    startTime();
+                }
+                return;
+            }
+            timeDmin = startOfDay(timeMin);
+            timeKnown = true;
+        }
+        int pickupZ = timeMap(pickupTime), dropoffZ = timeMap(dropoffTime);
+        int first = Math.min(pickupZ, dropoffZ), last = Math.max(pickupZ, dropoffZ);
+        boolean invalid = timeRange
+                ? Math.min(pickupTime, dropoffTime) < timeMin - TIME_SLACK
+                        || Math.max(pickupTime, dropoffTime) >= timeMax + TIME_SLACK
+                : first < -maxGrowth || last >= zSize + maxGrowth;
+        if (invalid) {
+            // Trip has invalid data
+            timeOutliers++;
+            return;
+        }
+        if (first < 0) {
+            // Moving every slice is expensive, so add at least a day at once
+            int slices = Math.max(-first, (int) Math.ceil(24 * 60 * 60 * 1000 / timeDelta));
+            prependTime(slices);
+            pickupZ += slices;
+            dropoffZ += slices;
+        }
+        growTime(Math.max(pickupZ, dropoffZ) + 1);
 
         // Update according to the new trip
-        pickupData.x++;
-        dropOffData.x++;
+        counts.add(pickupX, pickupY, pickupZ, 1);
+        counts.add(dropoffX, dropoffY, dropoffZ, 1);
+    }
+
+    /**
+     * Starts the time axis at the day of the median pickup of the trips held back, so that a few trips with wrong
+     * times among them do not move it, and counts them.
+     */
+    private void startTime() {
+        Partial trips = held;
+        held = new Partial();
+        long[] pickups = new long[trips.size / 4];
+        for (int i = 0; i < pickups.length; i++) {
+            pickups[i] = trips.times[2 * i];
+        }
+        Arrays.sort(pickups);
+        timeDmin = startOfDay(pickups[pickups.length / 2]);
+        timeKnown = true;
+        for (int i = 0, j = 0; i < trips.size; i += 4, j += 2) {
+            addTrip(trips.tiles[i], trips.tiles[i + 1], trips.times[j], trips.tiles[i + 2], trips.tiles[i + 3],
+                    trips.times[j + 1]);
+        }
+    }
+
+    private static long startOfDay(long time) {
+        ZoneId zone = ZoneId.systemDefault();
+        return Instant.ofEpochMilli(time).atZone(zone).toLocalDate().atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public TripListener fork() {
+        return new Partial();
+    }
+
+    @Override
+    public void merge(TripListener partial) {
+        Partial p = (Partial) partial;
+        count += p.count;
+        for (int i = 0, j = 0; i < p.size; i += 4, j += 2) {
+            addTrip(p.tiles[i], p.tiles[i + 1], p.times[j], p.tiles[i + 2], p.tiles[i + 3], p.times[j + 1]);
+        }
+    }
+
+    /**
+     * Collects the tiles and times of the trips of a single worker, they are counted in the cube on merge.
+     * The time axis is only grown on merge, so it comes out the same as in a serial run.
+     */
+    private class Partial implements TripListener {
+        private int count = 0;
+        private int[] tiles = new int[4 * 1024];
+        private long[] times = new long[2 * 1024];
+        private int size = 0;
+        private final int[] pickupTile = new int[2], dropoffTile = new int[2];
+
+        @Override
+        public void newTrip(Trip t) {
+            addTrip(t.pickup_location.latitude(), t.pickup_location.longitude(), t.pickup_datetime.getTime(),
+                    t.dropoff_location.latitude(), t.dropoff_location.longitude(), t.dropoff_datetime.getTime());
+        }
+
+        @Override
+        public void newTrips(TripBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                addTrip(batch.pickup_latitude[i], batch.pickup_longitude[i], batch.pickup_datetime[i],
+                        batch.dropoff_latitude[i], batch.dropoff_longitude[i], batch.dropoff_datetime[i]);
+            }
+        }
+
+        private void addTrip(double pickupLat, double pickupLon, long pickupTime,
+                             double dropoffLat, double dropoffLon, long dropoffTime) {
+            count++;
+            if (!cubeMap(pickupLat, pickupLon, pickupTile) || !cubeMap(dropoffLat, dropoffLon, dropoffTile)) {
+                // Trip has invalid data
+                return;
+            }
+            add(pickupTile[0], pickupTile[1], pickupTime, dropoffTile[0], dropoffTile[1], dropoffTime);
+        }
+
+        private void add(int pickupX, int pickupY, long pickupTime, int dropoffX, int dropoffY, long dropoffTime) {
+            if (size + 4 > tiles.length) {
+                tiles = Arrays.copyOf(tiles, tiles.length * 2);
+                times = Arrays.copyOf(times, times.length * 2);
+            }
+            times[size / 2] = pickupTime;
+            times[size / 2 + 1] = dropoffTime;
+            tiles[size++] = pickupX;
+            tiles[size++] = pickupY;
+            tiles[size++] = dropoffX;
+            tiles[size++] = dropoffY;
+        }
+
+        @Override
+        public void done() {
+        }
     }
 }
@@ -1,12 +0,0 @@
-/**
- * Created by ruudandriessen on 08/03/2017.
- */
-public class GetisOrdData {
-    int x;
-    double g;
-
-    GetisOrdData() {
-        x = 0;
-        g = 0;
-    }
-}
@@ -0,0 +1,62 @@
+import core.GiKernel;
+import core.Neighbourhood;
+import core.Weights;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the scalar Getis-Ord kernel against the best kernel available, which is the Vector API kernel when
+ * it is on the class path and jdk.incubator.vector is added, see {@link GiKernel}. Every variant computes the
+ * statistic of a cube of 225x225x248 cells a number of rounds; the first rounds are warm up.
+ */
+public class GiKernelBenchmark {
+    private static final int X_SIZE = 225, Y_SIZE = 225, Z_SIZE = 248;
+    private static final int CELLS = X_SIZE * Y_SIZE * Z_SIZE;
+    private static final int WARMUP_ROUNDS = 5, ROUNDS = 10;
+
+    public static void main(String[] args) {
+        int[] sums = new int[CELLS];
+        Random random = new Random(42);
+        for (int i = 0; i < CELLS; i++) {
+            // Mostly empty neighbourhoods with a long tail, like the trip counts
+            sums[i] = random.nextInt(4) == 0 ? (int) Math.exp(random.nextDouble() * 8) : 0;
+        }
+        double xbar = 0.8, S = 4.2;
+        Weights.Tables tables = Weights.binary(Neighbourhood.CUBE_3).tables(X_SIZE, Y_SIZE, Z_SIZE);
+
+        GiKernel scalar = GiKernel.scalar(), best = GiKernel.best();
+        double[] expectedGi = new double[CELLS], gi = new double[CELLS];
+        double[] expectedRange = {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] range = {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+        compute(scalar, sums, expectedGi, tables, xbar, S, expectedRange);
+        compute(best, sums, gi, tables, xbar, S, range);
+        if (!Arrays.equals(expectedGi, gi) || !Arrays.equals(expectedRange, range)) {
+            throw new IllegalStateException("Kernels disagree");
+        }
+        if (best == scalar) {
+            System.out.println("Vector kernel not available, run with --add-modules jdk.incubator.vector "
+                    + "and the src-vector classes on the class path");
+        }
+
+        System.out.println("kernel\tns/cell");
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            boolean report = round >= WARMUP_ROUNDS;
+            for (GiKernel kernel : new GiKernel[]{scalar, best}) {
+                long start = System.nanoTime();
+                compute(kernel, sums, gi, tables, xbar, S, range);
+                long end = System.nanoTime();
+                if (report) {
+                    System.out.println(kernel.name() + "\t" + String.format("%.3f", (double) (end - start) / CELLS));
+                }
+            }
+        }
+    }
+
+    private static void compute(GiKernel kernel, int[] sums, double[] gi, Weights.Tables tables, double xbar,
+                                double S, double[] range) {
+        for (int z = 0; z < Z_SIZE; z++) {
+            kernel.compute(sums, gi, z * X_SIZE * Y_SIZE, tables.sumWij(z), tables.deviation(z), xbar, S, range);
+        }
+    }
+}
@@ -1,16 +1,57 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public class Main
 {
-    public static void main(String [] args) {
+    /**
+     * @param args Optionally "--counting", to have the quadtree count the points rather than keep them, and
+     *             "--sparse", to also compute the Getis-Ord statistic per city block and 15 minutes on a sparse cube
+     *             (see {@link GetisOrdComputer#cityBlocks()}), followed by the trip files to read, in order, for
+     *             example "./data/yellow_tripdata_2016-*.csv". Defaults to January 2016.
+     */
+    public static void main(String [] args) throws IOException {
+        boolean counting = false, sparse = false;
+        List<String> patterns = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--counting")) {
+                counting = true;
+            } else if (arg.equals("--sparse")) {
+                sparse = true;
+            } else {
+                patterns.add(arg);
+            }
+        }
+        if (patterns.isEmpty()) {
+            patterns.add("./data/yellow_tripdata_2016-01.csv");
+        }
+
 //        CSVReader.listen(new GetisOrdComputer());
-        CSVReader.listen(new QuadTreeComputer());
+        if (sparse) {
+            CSVReader.listen(GetisOrdComputer.cityBlocks());
+        }
+        CSVReader.listen(new QuadTreeComputer(counting));
+
+        List<String> csvFiles = MultiFileReader.expand(patterns.toArray(new String[0]));
+
+        // Convert every csv once, later runs read the binary caches. Caches of an older version are converted again
+        List<String> files = new ArrayList<>();
+        for (String csvFile : csvFiles) {
+            String cacheFile = csvFile.endsWith(TripCache.EXTENSION) ? csvFile : TripCache.cacheFileFor(csvFile);
+            if (!cacheFile.equals(csvFile) && !TripCache.isCurrent(cacheFile)) {
+                TripCache.convert(csvFile, cacheFile);
+                TripCache.verify(csvFile, cacheFile);
+            }
+            files.add(cacheFile);
+        }
 
 //        int[] testSet = {100, 500, 1000, 5000, 10000, 50000, 100000, 500000, 1000000, 4000000};
         int[] testSet = {1000000};
         for (int i = 0; i < testSet.length; i++) {
             long start = System.nanoTime();
-            CSVReader.parse("./data/yellow_tripdata_2016-01.csv", testSet[i]);
+            MultiFileReader.parse(files, testSet[i]);
             long end = System.nanoTime();
             System.out.println(testSet[i] + "\t" + (end-start));
         }
     }
-}
\ No newline at end of file
+}
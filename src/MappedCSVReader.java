@@ -0,0 +1,155 @@
+import core.TripBatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Reads trips from a memory mapped CSV file. Rows are split by scanning the mapped bytes for delimiters and
+ * every field is parsed in place, so no line Strings or split arrays are created. Trips are handed to the
+ * listeners registered on {@link CSVReader} in batches, see {@link TripListener#newTrips(TripBatch)}.
+ */
+public class MappedCSVReader {
+    // Number of fields in a trip row
+    static final int FIELDS = 19;
+    // A single mapping can not exceed 2GB, larger files are mapped in consecutive windows
+    private static final long WINDOW_SIZE = Integer.MAX_VALUE;
+
+    public static void parse(String csvFile, TripListener listener) {
+        parse(csvFile, listener, -1);
+    }
+
+    public static void parse(String csvFile, TripListener listener, int tripCount) {
+        CSVReader.listen(listener);
+        parse(csvFile, tripCount);
+    }
+
+    public static void parse(String csvFile) {
+        parse(csvFile, -1);
+    }
+
+    public static void parse(String csvFile, int tripCount) {
+        try {
+            read(csvFile, tripCount);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        CSVReader.done();
+    }
+
+    /**
+     * Broadcasts the trips of a csv file to the listeners, skipping the header. Rows with less than
+     * {@link #FIELDS} fields (such as a trailing empty line) are skipped.
+     * @param csvFile The file to read
+     * @param tripCount The maximum number of trips to read, -1 for all
+     * @return The number of trips read
+     */
+    static int read(String csvFile, int tripCount) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+            return read(channel, 0, channel.size(), true, tripCount, CSVReader.listeners);
+        }
+    }
+
+    /**
+     * Parses the rows in a byte range of a csv file and hands them to the given listeners.
+     * @param channel The file to read from
+     * @param start Offset of the first byte of the range, must be the start of a line
+     * @param end Offset just past the last byte of the range, must be the start of a line or the end of the file
+     * @param skipHeader Whether the first line of the range is a header
+     * @param tripCount The maximum number of trips to read, -1 for all
+     * @param targets The listeners receiving the trips, or null to only count the rows
+     * @return The number of trips read
+     */
+    static int read(FileChannel channel, long start, long end, boolean skipHeader, int tripCount,
+                    List<? extends TripListener> targets) throws IOException {
+        int trips = 0;
+        int[] fieldStart = new int[FIELDS + 1];
+        TripBatch batch = targets == null ? null : new TripBatch();
+        boolean firstLine = skipHeader;
+
+        long offset = start;
+        while (offset < end) {
+            long length = Math.min(WINDOW_SIZE, end - offset);
+            boolean lastWindow = offset + length == end;
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            int limit = (int) length;
+
+            int lineStart = 0;
+            while (lineStart < limit) {
+                int pos = scanLine(buf, lineStart, limit, fieldStart);
+                if (pos == limit && !lastWindow) {
+                    // Line continues past this window, map the next window from its start
+                    break;
+                }
+
+                if (firstLine) {
+                    // Skip header
+                    firstLine = false;
+                } else if (fieldStart[FIELDS] != -1) {
+                    if (batch != null) {
+                        batch.add(buf, fieldStart);
+                        if (batch.isFull()) {
+                            broadcast(batch, targets);
+                        }
+                    }
+                    trips++;
+                    if (tripCount != -1 && tripCount <= trips) {
+                        broadcast(batch, targets);
+                        return trips;
+                    }
+                }
+                lineStart = pos + 1;
+            }
+
+            if (lineStart == 0 && !lastWindow) {
+                throw new IOException("Line at offset " + offset + " does not fit in a single mapping");
+            }
+            offset += Math.min(lineStart, limit);
+        }
+        broadcast(batch, targets);
+        return trips;
+    }
+
+    /**
+     * Finds the end of the line starting at lineStart, remembering where every field starts.
+     * @param buf The buffer holding the line
+     * @param lineStart Offset of the first byte of the line
+     * @param limit Offset just past the last byte that may be read
+     * @param fieldStart Receives the start of every field followed by the end of the last field plus one, see
+     *                   {@link TripBatch#add}. Its last entry is set to -1 if the line has too few fields.
+     * @return The offset of the newline ending the line, or limit if there is none
+     */
+    static int scanLine(ByteBuffer buf, int lineStart, int limit, int[] fieldStart) {
+        int pos = lineStart, fields = 1;
+        fieldStart[0] = lineStart;
+        byte b;
+        while (pos < limit && (b = buf.get(pos)) != '\n') {
+            if (b == ',' && fields <= FIELDS) {
+                fieldStart[fields++] = pos + 1;
+            }
+            pos++;
+        }
+        int lineEnd = pos > lineStart && buf.get(pos - 1) == '\r' ? pos - 1 : pos;
+        if (fields == FIELDS) {
+            fieldStart[fields++] = lineEnd + 1;
+        }
+        if (fields <= FIELDS) {
+            fieldStart[FIELDS] = -1;
+        }
+        return pos;
+    }
+
+    private static void broadcast(TripBatch batch, List<? extends TripListener> targets) {
+        if (batch == null || batch.size() == 0) {
+            return;
+        }
+        for (TripListener tl : targets) {
+            tl.newTrips(batch);
+        }
+        batch.clear();
+    }
+}
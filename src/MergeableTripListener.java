@@ -0,0 +1,18 @@
+/**
+ * A trip listener whose work can be split over several threads. Every thread feeds its own partial listener,
+ * which are merged back into this listener in input order once all trips have been read.
+ */
+public interface MergeableTripListener extends TripListener {
+    /**
+     * Creates an empty partial listener. A partial is only ever used by a single thread and its
+     * {@link TripListener#done()} is never called.
+     * @return A new partial listener
+     */
+    TripListener fork();
+
+    /**
+     * Adds the trips collected by a partial listener created by {@link #fork()}.
+     * @param partial The partial listener to merge
+     */
+    void merge(TripListener partial);
+}
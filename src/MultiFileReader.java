@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streams a sequence of trip files, for example a year of monthly TLC files, through the listeners registered
+ * on {@link CSVReader}. Files are read one after the other in batches, so memory use does not depend on the
+ * number or size of the files. Trip caches (see {@link TripCache}) are recognised by their extension, all other
+ * files are read as csv.
+ */
+public class MultiFileReader {
+    // The year and month in the name of a monthly file, such as yellow_tripdata_2016-01.csv
+    private static final Pattern MONTH = Pattern.compile("(\\d{4})-(\\d{2})");
+
+    public static void parse(List<String> files) {
+        parse(files, -1);
+    }
+
+    /**
+     * Reads the given files in order and signals the listeners once all of them are done.
+     * @param files The files to read
+     * @param tripCount The maximum number of trips to read over all files, -1 for all
+     */
+    public static void parse(List<String> files, int tripCount) {
+        long total = 0;
+        for (String file : files) {
+            long remaining = tripCount == -1 ? -1 : tripCount - total;
+            if (remaining == 0) {
+                break;
+            }
+
+            long start = System.nanoTime();
+            long trips;
+            try {
+                trips = file.endsWith(TripCache.EXTENSION)
+                        ? TripCache.read(file, remaining, CSVReader.listeners)
+                        : MappedCSVReader.read(file, (int) remaining);
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            total += trips;
+            System.out.println(file + "\t" + trips + " trips\t" + (System.nanoTime() - start) / 1000000 + " ms\t"
+                    + total + " total");
+        }
+        CSVReader.done();
+    }
+
+    /**
+     * Finds the months the files hold from their names, such as yellow_tripdata_2016-01.csv or its trip cache.
+     * @return The start of the first month and the end of the last one, in milliseconds since the epoch, or null if
+     *         there are no files or a file name holds no month
+     */
+    public static long[] months(List<String> files) {
+        ZoneId zone = ZoneId.systemDefault();
+        long[] range = null;
+        for (String file : files) {
+            Matcher matcher = MONTH.matcher(Paths.get(file).getFileName().toString());
+            YearMonth month = null;
+            while (matcher.find()) {
+                try {
+                    month = YearMonth.of(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+                } catch (DateTimeException e) {
+                    month = null;
+                }
+            }
+            if (month == null) {
+                return null;
+            }
+            long start = month.atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            long end = month.plusMonths(1).atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            range = range == null ? new long[]{start, end}
+                    : new long[]{Math.min(range[0], start), Math.max(range[1], end)};
+        }
+        return range;
+    }
+
+    /**
+     * Expands a list of file names and glob patterns (such as "./data/yellow_tripdata_2016-*.csv") into the
+     * files they name. The matches of a pattern are sorted by name, so monthly files come out in order.
+     * @param patterns File names or patterns; a pattern may only contain wildcards in its file name part
+     * @return The matching files, in the order of the patterns
+     */
+    public static List<String> expand(String... patterns) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (String pattern : patterns) {
+            Path path = Paths.get(pattern);
+            String name = path.getFileName().toString();
+            if (!name.contains("*") && !name.contains("?") && !name.contains("[") && !name.contains("{")) {
+                files.add(pattern);
+                continue;
+            }
+
+            Path dir = path.getParent() == null ? Paths.get(".") : path.getParent();
+            List<String> matches = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, name)) {
+                for (Path match : stream) {
+                    matches.add(match.toString());
+                }
+            }
+            matches.sort(null);
+            files.addAll(matches);
+        }
+        return files;
+    }
+}
@@ -0,0 +1,202 @@
+import core.Trip;
+import core.TripBatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Parses a csv file on several threads. The file is cut into byte ranges that start and end on line
+ * boundaries, every range is parsed by {@link MappedCSVReader} on a fork join worker and the per range results
+ * are merged into the listeners registered on {@link CSVReader}, in file order.
+ *
+ * Listeners implementing {@link MergeableTripListener} get one partial per range, so they see exactly the
+ * same trips as in a serial run. Other listeners are called directly from the workers, one worker at a time,
+ * which means they receive the trips in an unspecified order.
+ */
+public class ParallelCSVReader {
+    // Ranges per thread, so a slow range does not keep the other threads waiting
+    private static final int RANGES_PER_THREAD = 4;
+    // Ranges are never made smaller than this
+    private static final long MIN_RANGE_SIZE = 1 << 20;
+
+    public static void parse(String csvFile) {
+        parse(csvFile, -1);
+    }
+
+    public static void parse(String csvFile, int tripCount) {
+        parse(csvFile, tripCount, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void parse(String csvFile, int tripCount, int parallelism) {
+        try {
+            read(csvFile, tripCount, parallelism);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        CSVReader.done();
+    }
+
+    /**
+     * Broadcasts the trips of a csv file to the listeners, skipping the header.
+     * @param csvFile The file to read
+     * @param tripCount The maximum number of trips to read, -1 for all
+     * @param parallelism The number of threads to use
+     * @return The number of trips read
+     */
+    static int read(String csvFile, int tripCount, int parallelism) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (FileChannel channel = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+            long[] bounds = split(channel, parallelism * RANGES_PER_THREAD);
+            int ranges = bounds.length - 1;
+
+            // With a limit, count the rows per range first so every range knows how many of its rows to keep. Ranges
+            // are counted in file order, a wave of one per thread at a time, until the limit is reached; the ranges
+            // after that are not scanned and keep none of their rows
+            int[] quota = new int[ranges];
+            if (tripCount == -1) {
+                Arrays.fill(quota, -1);
+            } else {
+                int remaining = tripCount;
+                for (int first = 0; first < ranges && remaining > 0; first += parallelism) {
+                    int last = Math.min(ranges, first + parallelism);
+                    List<Callable<Integer>> counts = new ArrayList<>(last - first);
+                    for (int i = first; i < last; i++) {
+                        long start = bounds[i], end = bounds[i + 1];
+                        boolean header = i == 0;
+                        counts.add(() -> MappedCSVReader.read(channel, start, end, header, -1, null));
+                    }
+                    List<Future<Integer>> rows = pool.invokeAll(counts);
+                    for (int i = first; i < last; i++) {
+                        quota[i] = Math.min(remaining, rows.get(i - first).get());
+                        remaining -= quota[i];
+                    }
+                }
+            }
+
+            // Parse every range into its own partial listeners
+            List<List<TripListener>> partials = new ArrayList<>(ranges);
+            List<Callable<Integer>> tasks = new ArrayList<>(ranges);
+            for (int i = 0; i < ranges; i++) {
+                List<TripListener> targets = new ArrayList<>(CSVReader.listeners.size());
+                for (TripListener tl : CSVReader.listeners) {
+                    targets.add(tl instanceof MergeableTripListener ? ((MergeableTripListener) tl).fork()
+                            : new SynchronizedListener(tl));
+                }
+                partials.add(targets);
+                if (quota[i] == 0) continue;
+
+                long start = bounds[i], end = bounds[i + 1];
+                boolean header = i == 0;
+                int limit = quota[i];
+                tasks.add(() -> MappedCSVReader.read(channel, start, end, header, limit, targets));
+            }
+            int trips = 0;
+            for (Future<Integer> f : pool.invokeAll(tasks)) {
+                trips += f.get();
+            }
+
+            // Merge in file order
+            for (List<TripListener> targets : partials) {
+                for (int j = 0; j < targets.size(); j++) {
+                    TripListener tl = CSVReader.listeners.get(j);
+                    if (tl instanceof MergeableTripListener) {
+                        ((MergeableTripListener) tl).merge(targets.get(j));
+                    }
+                }
+            }
+            return trips;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing " + csvFile, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to parse " + csvFile, e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Cuts a file into roughly equal byte ranges whose bounds all lie at the start of a line.
+     * @return The range bounds, range i covers [bounds[i], bounds[i + 1])
+     */
+    private static long[] split(FileChannel channel, int ranges) throws IOException {
+        long size = channel.size();
+        ranges = (int) Math.max(1, Math.min(ranges, size / MIN_RANGE_SIZE));
+
+        List<Long> bounds = new ArrayList<>(ranges + 1);
+        bounds.add(0L);
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        for (int i = 1; i < ranges; i++) {
+            long pos = Math.max(size / ranges * i, bounds.get(bounds.size() - 1));
+            long lineStart = nextLineStart(channel, pos, buf);
+            if (lineStart > bounds.get(bounds.size() - 1) && lineStart < size) {
+                bounds.add(lineStart);
+            }
+        }
+        bounds.add(size);
+
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the first line start after the given position, or the end of the file if there is none.
+     */
+    private static long nextLineStart(FileChannel channel, long pos, ByteBuffer buf) throws IOException {
+        while (true) {
+            buf.clear();
+            int read = channel.read(buf, pos);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+    }
+
+    /**
+     * Forwards the trips of a worker to a listener that can not be forked, one worker at a time.
+     */
+    private static class SynchronizedListener implements TripListener {
+        private final TripListener listener;
+
+        SynchronizedListener(TripListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void newTrip(Trip t) {
+            synchronized (listener) {
+                listener.newTrip(t);
+            }
+        }
+
+        @Override
+        public void newTrips(TripBatch batch) {
+            synchronized (listener) {
+                listener.newTrips(batch);
+            }
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+}
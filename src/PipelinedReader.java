@@ -0,0 +1,403 @@
+import core.TripBatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a csv file in a pipeline of threads: a reader stage pulls raw chunks of lines from disk, a parse stage
+ * turns them into {@link TripBatch}es and every listener consumes the batches on a thread of its own. The stages
+ * are joined by bounded queues, and both the chunk buffers and the batches come from fixed size pools, so a
+ * stage that falls behind makes the stages before it wait instead of letting memory grow. A short hiccup of one
+ * stage is absorbed by the queues without stalling the others.
+ *
+ * Every listener still receives all batches in file order from a single thread, so the results are the same as
+ * those of a serial read. {@link #stages()} exposes the queue depth and throughput of every stage, also while
+ * the pipeline is running.
+ */
+public class PipelinedReader {
+    private static final int CHUNK_SIZE = 4 << 20;
+    // Chunks waiting to be parsed
+    private static final int CHUNK_QUEUE_SIZE = 4;
+    // Batches waiting for a listener, per listener
+    private static final int BATCH_QUEUE_SIZE = 32;
+
+    private static final Chunk END_OF_CHUNKS = new Chunk(null);
+    private static final Batch END_OF_BATCHES = new Batch(null);
+
+    /**
+     * Counters of a single stage of the pipeline.
+     */
+    public static class Stage {
+        public final String name;
+        private final BlockingQueue<?> input;
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private volatile int maxDepth = 0;
+        private volatile long start, end;
+
+        Stage(String name, BlockingQueue<?> input) {
+            this.name = name;
+            this.input = input;
+        }
+
+        /**
+         * @return The number of items waiting in the input queue of this stage, 0 for the reader stage
+         */
+        public int queueDepth() {
+            return input == null ? 0 : input.size();
+        }
+
+        public int maxQueueDepth() {
+            return maxDepth;
+        }
+
+        /**
+         * @return The number of chunks or batches this stage has handled
+         */
+        public long items() {
+            return items.get();
+        }
+
+        public long rows() {
+            return rows.get();
+        }
+
+        public long bytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @return The fraction of its running time this stage spent working rather than waiting on a queue
+         */
+        public double utilisation() {
+            long elapsed = elapsedNanos();
+            return elapsed == 0 ? 0 : (double) busyNanos.get() / elapsed;
+        }
+
+        /**
+         * @return Rows handled per second so far
+         */
+        public double rowsPerSecond() {
+            long elapsed = elapsedNanos();
+            return elapsed == 0 ? 0 : rows.get() * 1e9 / elapsed;
+        }
+
+        private long elapsedNanos() {
+            if (start == 0) return 0;
+            return (end == 0 ? System.nanoTime() : end) - start;
+        }
+
+        private void sampleDepth() {
+            int depth = queueDepth();
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-30s items %8d\trows/s %12.0f\tMB %8.1f\tbusy %5.1f%%\tqueue %3d (max %d)",
+                    name, items(), rowsPerSecond(), bytes() / 1e6, utilisation() * 100, queueDepth(), maxDepth);
+        }
+    }
+
+    private final String csvFile;
+    private final int tripCount;
+    private final List<TripListener> listeners;
+
+    private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(CHUNK_QUEUE_SIZE + 2);
+    private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(CHUNK_QUEUE_SIZE);
+    private final BlockingQueue<Batch> freeBatches = new ArrayBlockingQueue<>(BATCH_QUEUE_SIZE + 2);
+    private final List<BlockingQueue<Batch>> batches = new ArrayList<>();
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    private volatile boolean stopped = false;
+    private volatile Throwable failure = null;
+    private int trips = 0;
+
+    public static void parse(String csvFile) {
+        parse(csvFile, -1);
+    }
+
+    public static void parse(String csvFile, int tripCount) {
+        PipelinedReader reader = new PipelinedReader(csvFile, tripCount, CSVReader.listeners);
+        try {
+            reader.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Stage stage : reader.stages()) {
+            System.out.println(stage);
+        }
+        CSVReader.done();
+    }
+
+    /**
+     * Creates a pipeline, see {@link #run()}.
+     * @param csvFile The file to read
+     * @param tripCount The maximum number of trips to read, -1 for all
+     * @param listeners The listeners receiving the trips, their {@link TripListener#done()} is not called
+     */
+    public PipelinedReader(String csvFile, int tripCount, List<TripListener> listeners) {
+        this.csvFile = csvFile;
+        this.tripCount = tripCount;
+        this.listeners = new ArrayList<>(listeners);
+
+        stages.add(new Stage("read " + csvFile, null));
+        stages.add(new Stage("parse", chunks));
+        for (TripListener listener : this.listeners) {
+            BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(BATCH_QUEUE_SIZE + 2);
+            batches.add(queue);
+            stages.add(new Stage(listener.getClass().getSimpleName(), queue));
+        }
+        for (int i = 0; i < CHUNK_QUEUE_SIZE + 2; i++) {
+            freeChunks.add(new Chunk(ByteBuffer.allocateDirect(CHUNK_SIZE)));
+        }
+        for (int i = 0; i < BATCH_QUEUE_SIZE + 2; i++) {
+            freeBatches.add(new Batch(new TripBatch()));
+        }
+    }
+
+    /**
+     * @return The stages of the pipeline: the reader, the parser and one per listener
+     */
+    public List<Stage> stages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * Runs the pipeline until the file is read and every listener has consumed all trips.
+     * @return The number of trips read
+     */
+    public int run() throws IOException {
+        if (!threads.isEmpty()) {
+            throw new IllegalStateException("A pipeline can only run once");
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+            // Create every stage before starting any, so that a stage failing early interrupts all of them
+            stage("reader", () -> read(channel, stages.get(0)));
+            stage("parser", () -> parse(stages.get(1)));
+            for (int i = 0; i < listeners.size(); i++) {
+                TripListener listener = listeners.get(i);
+                BlockingQueue<Batch> queue = batches.get(i);
+                Stage stage = stages.get(i + 2);
+                stage("consumer " + stage.name, () -> consume(listener, queue, stage));
+            }
+            for (Thread thread : threads) {
+                synchronized (this) {
+                    if (failure != null) {
+                        break;
+                    }
+                    thread.start();
+                }
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            abort(e);
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw new IOException("Pipeline for " + csvFile + " failed", failure);
+        }
+        return trips;
+    }
+
+    private interface StageBody {
+        void run() throws Exception;
+    }
+
+    private synchronized void stage(String name, StageBody body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (InterruptedException e) {
+                // Aborted by another stage
+            } catch (Throwable t) {
+                abort(t);
+            }
+        }, name);
+        threads.add(thread);
+    }
+
+    private synchronized void abort(Throwable t) {
+        if (failure == null) {
+            failure = t;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reader stage: fills chunks with whole lines. The partial line at the end of a read is carried over to
+     * the start of the next chunk.
+     */
+    private void read(FileChannel channel, Stage stage) throws IOException, InterruptedException {
+        stage.start = System.nanoTime();
+        byte[] carry = new byte[0];
+        boolean eof = false;
+        while (!eof && !stopped) {
+            Chunk chunk = freeChunks.take();
+            long busy = System.nanoTime();
+            ByteBuffer buf = chunk.buf;
+            buf.clear();
+            buf.put(carry);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+
+            // Hand over everything up to the last newline, or everything at the end of the file
+            int length = buf.position();
+            if (!eof) {
+                while (length > 0 && buf.get(length - 1) != '\n') {
+                    length--;
+                }
+                if (length == 0) {
+                    throw new IOException("Line longer than " + CHUNK_SIZE + " bytes in " + csvFile);
+                }
+            }
+            carry = new byte[buf.position() - length];
+            for (int i = 0; i < carry.length; i++) {
+                carry[i] = buf.get(length + i);
+            }
+            chunk.length = length;
+
+            stage.items.incrementAndGet();
+            stage.bytes.addAndGet(length);
+            stage.busyNanos.addAndGet(System.nanoTime() - busy);
+            chunks.put(chunk);
+            stages.get(1).sampleDepth();
+        }
+        chunks.put(END_OF_CHUNKS);
+        stage.end = System.nanoTime();
+    }
+
+    /**
+     * Parse stage: splits chunks into rows and hands out full batches to every listener.
+     */
+    private void parse(Stage stage) throws InterruptedException {
+        stage.start = System.nanoTime();
+        int[] fieldStart = new int[MappedCSVReader.FIELDS + 1];
+        boolean firstLine = true;
+        Batch batch = freeBatches.take();
+
+        Chunk chunk;
+        while ((chunk = chunks.take()) != END_OF_CHUNKS) {
+            long busy = System.nanoTime();
+            ByteBuffer buf = chunk.buf;
+            int lineStart = 0;
+            while (lineStart < chunk.length && !stopped) {
+                int pos = MappedCSVReader.scanLine(buf, lineStart, chunk.length, fieldStart);
+                if (firstLine) {
+                    // Skip header
+                    firstLine = false;
+                } else if (fieldStart[MappedCSVReader.FIELDS] != -1) {
+                    batch.trips.add(buf, fieldStart);
+                    trips++;
+                    if (batch.trips.isFull()) {
+                        stage.busyNanos.addAndGet(System.nanoTime() - busy);
+                        publish(batch, stage);
+                        batch = freeBatches.take();
+                        busy = System.nanoTime();
+                    }
+                    if (tripCount != -1 && tripCount <= trips) {
+                        // Let the reader stop, the chunks it still hands over are skipped
+                        stopped = true;
+                    }
+                }
+                lineStart = pos + 1;
+            }
+            stage.items.incrementAndGet();
+            stage.bytes.addAndGet(chunk.length);
+            stage.busyNanos.addAndGet(System.nanoTime() - busy);
+            freeChunks.put(chunk);
+        }
+
+        if (batch.trips.size() > 0) {
+            publish(batch, stage);
+        }
+        for (BlockingQueue<Batch> queue : batches) {
+            queue.put(END_OF_BATCHES);
+        }
+        stage.end = System.nanoTime();
+    }
+
+    private void publish(Batch batch, Stage stage) throws InterruptedException {
+        stage.rows.addAndGet(batch.trips.size());
+        batch.pending.set(batches.size());
+        for (int i = 0; i < batches.size(); i++) {
+            batches.get(i).put(batch);
+            stages.get(i + 2).sampleDepth();
+        }
+        if (batches.isEmpty()) {
+            release(batch);
+        }
+    }
+
+    /**
+     * Consumer stage: feeds the batches to a single listener.
+     */
+    private void consume(TripListener listener, BlockingQueue<Batch> queue, Stage stage) throws InterruptedException {
+        stage.start = System.nanoTime();
+        Batch batch;
+        while ((batch = queue.take()) != END_OF_BATCHES) {
+            long busy = System.nanoTime();
+            listener.newTrips(batch.trips);
+            stage.items.incrementAndGet();
+            stage.rows.addAndGet(batch.trips.size());
+            stage.busyNanos.addAndGet(System.nanoTime() - busy);
+            if (batch.pending.decrementAndGet() == 0) {
+                release(batch);
+            }
+        }
+        stage.end = System.nanoTime();
+    }
+
+    private void release(Batch batch) throws InterruptedException {
+        batch.trips.clear();
+        freeBatches.put(batch);
+    }
+
+    /**
+     * A buffer holding whole lines of the file.
+     */
+    private static class Chunk {
+        final ByteBuffer buf;
+        int length;
+
+        Chunk(ByteBuffer buf) {
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * A batch shared by all consumers, it goes back to the pool once every consumer is done with it.
+     */
+    private static class Batch {
+        final TripBatch trips;
+        final AtomicInteger pending = new AtomicInteger();
+
+        Batch(TripBatch trips) {
+            this.trips = trips;
+        }
+    }
+}
@@ -1,146 +1,213 @@
-import core.Location;
+import core.CountingQuadTree;
+import core.QuadNodeTree;
 import core.QuadTree;
 import core.Trip;
+import core.TripBatch;
 
 import java.io.BufferedWriter;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 /**
  * Created by ruudandriessen on 21/03/2017.
  */
-public class QuadTreeComputer implements TripListener {
-    private QuadTree.PointRegionQuadTree quad;
+public class QuadTreeComputer implements MergeableTripListener {
+    // The density tiles are counted on a grid of at most 2^MAX_TILE_DEPTH cells along each side
+    private static final int MAX_TILE_DEPTH = 11;
+
+    private static final int LEAF_CAPACITY = 1000, MAX_HEIGHT = 10000;
+
+    // The tree holding the points, null in counting mode
+    private QuadTree.PointRegionQuadTree<QuadTree.XYPoint> quad;
+    // The tree counting the points in counting mode, null otherwise
+    private CountingQuadTree counts;
     private double latMax = 40.9, latMin = 40.5, lonMin = -74.25, lonMax = -73.7;
-    private ArrayList<Location> locations;
-    private int count = 0;
+    // The points of all trips, loaded into the tree at once when all trips are in. Workers fill partials of their own
+    // rather than inserting into the tree concurrently, since a bulk load is much faster than inserting one by one.
+    // In counting mode the trips are counted as they come in instead
+    private Partial trips;
+    // Whether done() writes the hotspots and tiles, a tree that is queried in memory does not
+    private boolean writeResults = true;
 
     QuadTreeComputer() {
-        quad = new QuadTree.PointRegionQuadTree(latMin, lonMin, latMax-latMin, lonMax-lonMin, 1000, 10000);
-        locations = new ArrayList<>();
+        this(false);
+    }
+
+    /**
+     * @param counting Whether the tree only counts the points instead of keeping them (see {@link CountingQuadTree}),
+     *                 which is all the hotspots and density tiles need. The counts of nodes that subdivided late
+     *                 are estimates, points at the same location are all counted where the point tree keeps one,
+     *                 and there is no {@link #tree()} to query.
+     */
+    QuadTreeComputer(boolean counting) {
+        if (counting) {
+            counts = new CountingQuadTree(latMin, lonMin, latMax-latMin, lonMax-lonMin, LEAF_CAPACITY, MAX_HEIGHT);
+        } else {
+            quad = new QuadTree.PointRegionQuadTree<>(latMin, lonMin, latMax-latMin, lonMax-lonMin, LEAF_CAPACITY,
+                    MAX_HEIGHT);
+        }
+        trips = new Partial(counts);
     }
 
     @Override
     public void newTrip(Trip t) {
-        count++;
-        if (count % 100000 == 0) {
-//            System.out.println("Processed: " + count + " trips");
-        }
-        if (t.pickup_location.latitude() == 0 || t.pickup_location.longitude() == 0
-                || t.dropoff_location.latitude() == 0 || t.dropoff_location.longitude() == 0) {
-            return;
+        trips.newTrip(t);
+    }
+
+    @Override
+    public void newTrips(TripBatch batch) {
+        trips.newTrips(batch);
+    }
+
+    /**
+     * @param writeResults Whether the hotspots and the density tiles are written once all trips are in
+     */
+    void setWriteResults(boolean writeResults) {
+        this.writeResults = writeResults;
+    }
+
+    /**
+     * @return The tree holding the pickup and dropoff locations of the trips
+     * @throws IllegalStateException In counting mode
+     */
+    QuadTree.PointRegionQuadTree<QuadTree.XYPoint> tree() {
+        if (quad == null) {
+            throw new IllegalStateException("A counting tree keeps no points to query");
         }
-        quad.insert(t.dropoff_location.latitude(), t.dropoff_location.longitude());
-        quad.insert(t.pickup_location.latitude(), t.pickup_location.longitude());
+        return quad;
+    }
 
-        locations.add(t.dropoff_location);
-        locations.add(t.pickup_location);
+    /**
+     * @return The tree whose nodes the hotspots are found in, either the point tree or the counting tree
+     */
+    private QuadNodeTree<QuadTree.XYPoint> nodes() {
+        return quad != null ? quad : counts;
     }
 
     @Override
     public void done() {
-        ArrayList<ArrayList<QuadTree.QuadNode>> hotspots = findHotspots(1);
+        if (quad != null) {
+            quad.load(trips.points, trips.size);
+        }
+        trips = new Partial(counts);
+        if (!writeResults) {
+            return;
+        }
+        ArrayList<ArrayList<QuadTree.QuadNode<QuadTree.XYPoint>>> hotspots = findHotspots(1);
         writeHotspots(hotspots);
+        writeTiles();
     }
 
-    private ArrayList<ArrayList<QuadTree.QuadNode>> findHotspots(int count) {
-        int level = quad.currentHeight;
-        int hotspotCount = 0;
-        ArrayList<ArrayList<QuadTree.QuadNode>> hotspots = new ArrayList<>();
-
-        while (hotspotCount < count && level >= 0) {
-            ArrayList<QuadTree.QuadNode> levelNodes = new ArrayList<>();
-            getNodes(quad.getRoot(), levelNodes, level);
-//            System.out.println("On level " + level + " we have " + levelNodes.size() + " nodes");
-            ArrayList<ArrayList<QuadTree.QuadNode>> levelHotspots = new ArrayList<>();
-
-            // Find list of potential hotspots
-            for (int i = 0; i < levelNodes.size(); i++) {
-                // Find start node of a cluster
-                QuadTree.QuadNode node = levelNodes.get(i);
-                // Find the cluster
-                ArrayList<QuadTree.QuadNode> cluster = new ArrayList<>();
-                findCluster(node, levelNodes, cluster);
+    /**
+     * Finds the clusters with the most points among the leaves of the deepest level, then of the levels above it
+     * until there are enough.
+     */
+    private ArrayList<ArrayList<QuadTree.QuadNode<QuadTree.XYPoint>>> findHotspots(int count) {
+        List<List<QuadTree.QuadNode<QuadTree.XYPoint>>> leaves = nodes().leavesByLevel();
+        ArrayList<ArrayList<QuadTree.QuadNode<QuadTree.XYPoint>>> hotspots = new ArrayList<>();
+        for (int level = leaves.size() - 1; level >= 0 && hotspots.size() < count; level--) {
+            hotspots.addAll(findClusters(leaves.get(level), count - hotspots.size()));
+        }
+        return hotspots;
+    }
 
-                // Add it to potential hotspot list
-                levelHotspots.add(cluster);
-            }
+    /**
+     * Groups nodes of a single level into clusters of nodes that share an edge. A union-find over the nodes joins
+     * every node with its east and south neighbor, which sees every shared edge once, in near linear time.
+     *
+     * @param count The number of clusters to return
+     * @return The count clusters with the most points, the one with the most points first
+     */
+    private List<ArrayList<QuadTree.QuadNode<QuadTree.XYPoint>>> findClusters(
+            List<QuadTree.QuadNode<QuadTree.XYPoint>> nodes, int count) {
+        int n = nodes.size();
+        // Neighbors are looked up by identity, equals compares bounding boxes
+        Map<QuadTree.QuadNode<QuadTree.XYPoint>, Integer> index = new IdentityHashMap<>(2 * n);
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) {
+            index.put(nodes.get(i), i);
+            parent[i] = i;
+        }
+        for (int i = 0; i < n; i++) {
+            // A neighbor that is not in the list is larger than the nodes of this level, or not a leaf
+            Integer east = index.get(nodes.get(i).eastNeighbor());
+            if (east != null) union(parent, i, east);
+            Integer south = index.get(nodes.get(i).southNeighbor());
+            if (south != null) union(parent, i, south);
+        }
 
-            // Sort on hotspot size
-            levelHotspots.sort(new Comparator<ArrayList<QuadTree.QuadNode>>() {
-                @Override
-                public int compare(ArrayList<QuadTree.QuadNode> o1, ArrayList<QuadTree.QuadNode> o2) {
-                    return o2.size() - o1.size();
+        // The number of points of every cluster, by its root; the root is the first node of the cluster
+        long[] points = new long[n];
+        for (int i = 0; i < n; i++) {
+            points[find(parent, i)] += nodes.get(i).size();
+        }
+        // The count best roots so far, the worst on top: fewest points, on a tie the later cluster
+        Comparator<Integer> better = (o1, o2) -> points[o1] != points[o2] ? Long.compare(points[o2], points[o1])
+                : Integer.compare(o1, o2);
+        PriorityQueue<Integer> best = new PriorityQueue<>(count + 1, better.reversed());
+        for (int i = 0; i < n; i++) {
+            if (parent[i] == i) {
+                best.add(i);
+                if (best.size() > count) {
+                    best.poll();
                 }
-            });
-
-            // Add all potential hotspots based on their size
-            for (int i = 0; i < levelHotspots.size() && hotspotCount < count; i++) {
-                hotspots.add(levelHotspots.get(i));
-
-//                System.out.println("Added hotspot at level " + level + " of size " + levelHotspots.get(i).size());
-                // Increase hotspot count
-                hotspotCount++;
             }
-
-//            System.out.println(hotspotCount + " / " + count + " @ level: " + level);
-            level--;
         }
+        List<Integer> roots = new ArrayList<>(best);
+        roots.sort(better);
 
-         return hotspots;
-    }
-
-    private void findCluster(QuadTree.QuadNode node, List<QuadTree.QuadNode> nodes, List<QuadTree.QuadNode> cluster) {
-        ArrayList<QuadTree.QuadNode> neighbors = new ArrayList<>(4);
-        QuadTree.QuadNode NN = node.northNeighbor();
-        QuadTree.QuadNode SN = node.southNeighbor();
-        QuadTree.QuadNode WN = node.westNeighbor();
-        QuadTree.QuadNode EN = node.eastNeighbor();
-
-        if (NN != null) neighbors.add(NN);
-        if (SN != null) neighbors.add(SN);
-        if (WN != null) neighbors.add(WN);
-        if (EN != null) neighbors.add(EN);
-
-        for (int j = 0; j < neighbors.size(); j++) {
-            QuadTree.QuadNode neighbor = neighbors.get(j);
-            if (nodes.remove(neighbor)) {
-                cluster.add(neighbor);
-                findCluster(neighbor, nodes, cluster);
+        Map<Integer, ArrayList<QuadTree.QuadNode<QuadTree.XYPoint>>> clusters = new LinkedHashMap<>();
+        for (int root : roots) {
+            clusters.put(root, new ArrayList<>());
+        }
+        for (int i = 0; i < n; i++) {
+            ArrayList<QuadTree.QuadNode<QuadTree.XYPoint>> cluster = clusters.get(find(parent, i));
+            if (cluster != null) {
+                cluster.add(nodes.get(i));
             }
         }
+        return new ArrayList<>(clusters.values());
     }
 
-    private void getNodes(QuadTree.QuadNode node, ArrayList<QuadTree.QuadNode> result, int level) {
-        List<QuadTree.QuadNode> children = new ArrayList<>();
-        if (node.northWest != null || node.northEast != null || node.southWest != null || node.southEast != null) {
-            children = new ArrayList<>(4);
-            if (node.northWest != null) children.add(node.northWest);
-            if (node.northEast != null) children.add(node.northEast);
-            if (node.southWest != null) children.add(node.southWest);
-            if (node.southEast != null) children.add(node.southEast);
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            // Path halving
+            parent[i] = parent[parent[i]];
+            i = parent[i];
         }
-        for (int i = 0; i < children.size(); i++) {
-            QuadTree.QuadNode childNode = children.get(i);
-            if (childNode.aabb.level == level && childNode.isLeaf()) {
-                result.add(childNode);
-            } else {
-                getNodes(childNode, result, level);
-            }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        a = find(parent, a);
+        b = find(parent, b);
+        // The lower root wins, so the roots do not depend on the order of the unions
+        if (a < b) {
+            parent[b] = a;
+        } else {
+            parent[a] = b;
         }
     }
 
-    private void writeHotspots(ArrayList<ArrayList<QuadTree.QuadNode>> hotspots) {
+    private void writeHotspots(ArrayList<ArrayList<QuadTree.QuadNode<QuadTree.XYPoint>>> hotspots) {
         try (Writer writer = new BufferedWriter(new OutputStreamWriter(
                 new FileOutputStream("visualize/qtree/qtree.json"), "utf-8"))) {
 
             writer.write("[");
             for (int i = 0; i < hotspots.size(); i++) {
-                ArrayList<QuadTree.QuadNode> hotspot = hotspots.get(i);
+                ArrayList<QuadTree.QuadNode<QuadTree.XYPoint>> hotspot = hotspots.get(i);
                 for (int j = 0; j < hotspot.size(); j++) {
                     if (i != 0 || j != 0) {
                         writer.write(", \n");
@@ -155,14 +222,127 @@ public class QuadTreeComputer implements TripListener {
         }
     }
 
+    /**
+     * Writes the number of points per node at the depth of the deepest leaves as a {@link TilePyramid}, with a
+     * manifest describing the grid, to visualize/qtree/tiles.
+     */
+    private void writeTiles() {
+        int depth = Math.max(0, Math.min(quad != null ? quad.height() : counts.height(), MAX_TILE_DEPTH));
+        int size = 1 << depth;
+        float[] cells = new float[size * size];
+        if (quad != null) {
+            int[] density = quad.density(depth);
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = density[i];
+            }
+        } else {
+            double[] density = counts.density(depth);
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = (float) density[i];
+            }
+        }
+
+        Path directory = Paths.get("visualize/qtree/tiles");
+        TilePyramid pyramid = new TilePyramid(size, size);
+        try {
+            int tiles = pyramid.write(directory, cells, TilePyramid.Aggregate.SUM);
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(directory.resolve("manifest.json").toFile()), "utf-8"))) {
+                writer.write("{\"format\": \"float32le\", \"xSize\": " + size + ", \"ySize\": " + size
+                        + ", \"latMin\": " + latMin + ", \"latMax\": " + latMax
+                        + ", \"lonMin\": " + lonMin + ", \"lonMax\": " + lonMax
+                        + ", \"tiles\": {\"size\": " + TilePyramid.TILE_SIZE + ", \"levels\": " + pyramid.levels()
+                        + ", \"path\": \"{level}/{x}/{y}.f32\", \"layers\": {\"count\": \"sum\"}}}\n");
+            }
+            System.out.println("Written " + tiles + " tiles of " + size + "x" + size + " cells");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void writeTree() {
         try (Writer writer = new BufferedWriter(new OutputStreamWriter(
                 new FileOutputStream("visualize/qtree/qtree.json"), "utf-8"))) {
 
-            writer.write(quad.toJson());
+            writer.write(quad != null ? quad.toJson() : counts.toJson());
 
         } catch (Exception e) {
             System.out.println(e.toString());
         }
     }
+
+    @Override
+    public TripListener fork() {
+        // Workers collect the points in counting mode too, so they are counted in input order when merged
+        return new Partial(null);
+    }
+
+    @Override
+    public void merge(TripListener partial) {
+        trips.addAll((Partial) partial);
+    }
+
+    /**
+     * Collects the pickup and dropoff points of trips, as latitude, longitude pairs, or counts them right away.
+     */
+    private static class Partial implements TripListener {
+        // The tree the points are counted in, null to collect them
+        private final CountingQuadTree counts;
+        private double[] points = new double[2 * 1024];
+        private int size = 0;
+
+        Partial(CountingQuadTree counts) {
+            this.counts = counts;
+        }
+
+        @Override
+        public void newTrip(Trip t) {
+            addTrip(t.pickup_location.latitude(), t.pickup_location.longitude(),
+                    t.dropoff_location.latitude(), t.dropoff_location.longitude());
+        }
+
+        @Override
+        public void newTrips(TripBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                addTrip(batch.pickup_latitude[i], batch.pickup_longitude[i],
+                        batch.dropoff_latitude[i], batch.dropoff_longitude[i]);
+            }
+        }
+
+        private void addTrip(double pickupLat, double pickupLon, double dropoffLat, double dropoffLon) {
+            if (pickupLat == 0 || pickupLon == 0 || dropoffLat == 0 || dropoffLon == 0) {
+                return;
+            }
+            if (counts != null) {
+                counts.insert(dropoffLat, dropoffLon);
+                counts.insert(pickupLat, pickupLon);
+                return;
+            }
+            if (size + 4 > points.length) {
+                points = Arrays.copyOf(points, points.length * 2);
+            }
+            points[size++] = dropoffLat;
+            points[size++] = dropoffLon;
+            points[size++] = pickupLat;
+            points[size++] = pickupLon;
+        }
+
+        private void addAll(Partial partial) {
+            if (counts != null) {
+                for (int i = 0; i < partial.size; i += 2) {
+                    counts.insert(partial.points[i], partial.points[i + 1]);
+                }
+                return;
+            }
+            if (size + partial.size > points.length) {
+                points = Arrays.copyOf(points, Math.max(2 * points.length, size + partial.size));
+            }
+            System.arraycopy(partial.points, 0, points, size, partial.size);
+            size += partial.size;
+        }
+
+        @Override
+        public void done() {
+        }
+    }
 }
@@ -0,0 +1,286 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import core.DoubleCube;
+import core.IntCube;
+import core.QuadTree;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads the trips once and answers questions about them over HTTP on localhost, so asking one does not take a
+ * rerun. Once loaded the quadtree and the space time cube are never changed again, every request reads the same
+ * snapshot. All endpoints answer GET requests with json; times are milliseconds since the epoch or ISO instants.
+ *
+ * /count?latMin=..&latMax=..&lonMin=..&lonMax=..  number of pickups and dropoffs in a range, from the quadtree
+ * /gi?time=..&lat=..&lon=..                      statistic and count of the cell holding a location and time
+ * /gi?time=..                                    statistic of every cell of the slice holding a time
+ * /hotspots?k=..[&time=..]                       the k cells with the highest statistic, of all slices or one
+ */
+public class QueryServer {
+    private static final int DEFAULT_PORT = 8080;
+    private static final int MAX_K = 10000;
+
+    /**
+     * Answers a request from its query parameters.
+     */
+    private interface Query {
+        /**
+         * @return The json answer
+         * @throws IllegalArgumentException If a parameter is missing or invalid, which is answered with 400
+         */
+        String answer(Map<String, String> parameters);
+    }
+
+    private final GetisOrdComputer cube;
+    private final QuadTree.PointRegionQuadTree<QuadTree.XYPoint> tree;
+
+    private QueryServer(GetisOrdComputer cube, QuadTree.PointRegionQuadTree<QuadTree.XYPoint> tree) {
+        this.cube = cube;
+        this.tree = tree;
+    }
+
+    /**
+     * @param args Optionally "--port" and a port, and "--sparse" to compute the statistic per city block and 15
+     *             minutes on a sparse cube (see {@link GetisOrdComputer#cityBlocks()}), followed by the trip files to
+     *             read, as for {@link Main}
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        boolean sparse = false;
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--sparse")) {
+                sparse = true;
+            } else {
+                patterns.add(args[i]);
+            }
+        }
+        if (patterns.isEmpty()) {
+            patterns.add("./data/yellow_tripdata_2016-01.csv");
+        }
+
+        GetisOrdComputer cube = sparse ? GetisOrdComputer.cityBlocks() : new GetisOrdComputer();
+        cube.setWriteResults(false);
+        QuadTreeComputer tree = new QuadTreeComputer();
+        tree.setWriteResults(false);
+        List<String> files = MultiFileReader.expand(patterns.toArray(new String[0]));
+        long[] months = MultiFileReader.months(files);
+        if (months != null) {
+            cube.setTimeRange(months[0], months[1]);
+        }
+        CSVReader.listen(cube);
+        CSVReader.listen(tree);
+        MultiFileReader.parse(files);
+
+        new QueryServer(cube, tree.tree()).start(port);
+    }
+
+    private void start(int port) throws IOException {
+        // Only reachable from this machine
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/count", handler("/count", this::count));
+        server.createContext("/gi", handler("/gi", this::gi));
+        server.createContext("/hotspots", handler("/hotspots", this::hotspots));
+        server.setExecutor(executor());
+        server.start();
+        System.out.println("Listening on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort());
+    }
+
+    /**
+     * @return An executor starting a virtual thread per request where the runtime has them (Java 21 and later),
+     *         a pool of a thread per processor otherwise
+     */
+    private static ExecutorService executor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    private String count(Map<String, String> parameters) {
+        double latMin = number(parameters, "latMin"), latMax = number(parameters, "latMax");
+        double lonMin = number(parameters, "lonMin"), lonMax = number(parameters, "lonMax");
+        if (!(latMin <= latMax) || !(lonMin <= lonMax)) {
+            throw new IllegalArgumentException("Empty range");
+        }
+        // Range queries may run concurrently on the tree
+        int count = tree.queryRange(latMin, lonMin, latMax - latMin, lonMax - lonMin).size();
+        return "{\"count\": " + count + "}";
+    }
+
+    private String gi(Map<String, String> parameters) {
+        DoubleCube g = cube.statistic();
+        long time = time(parameters.get("time"));
+        if (parameters.containsKey("lat") || parameters.containsKey("lon")) {
+            int[] cell = new int[3];
+            if (!cube.cell(number(parameters, "lat"), number(parameters, "lon"), time, cell)) {
+                throw new IllegalArgumentException("Location or time outside of the cube");
+            }
+            return cellJson(cell[0], cell[1], cell[2], g.get(cell[0], cell[1], cell[2]));
+        }
+
+        int z = cube.slice(time);
+        if (z < 0) {
+            throw new IllegalArgumentException("Time outside of the cube");
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\"start\": ").append(cube.sliceStart(z)).append(", \"xSize\": ").append(g.xSize())
+                .append(", \"ySize\": ").append(g.ySize()).append(", \"gi\": [");
+        for (int y = 0; y < g.ySize(); y++) {
+            for (int x = 0; x < g.xSize(); x++) {
+                json.append(x == 0 && y == 0 ? "" : ",").append(number(g.get(x, y, z)));
+            }
+        }
+        return json.append("]}").toString();
+    }
+
+    private String hotspots(Map<String, String> parameters) {
+        DoubleCube g = cube.statistic();
+        int k = (int) number(parameters, "k");
+        if (k < 1 || k > MAX_K) {
+            throw new IllegalArgumentException("k must lie in [1, " + MAX_K + "]");
+        }
+        int first = 0, last = g.zSize() - 1;
+        if (parameters.containsKey("time")) {
+            first = last = cube.slice(time(parameters.get("time")));
+            if (first < 0) {
+                throw new IllegalArgumentException("Time outside of the cube");
+            }
+        }
+
+        // The k highest so far, lowest on top: value, x, y, z
+        PriorityQueue<double[]> top = new PriorityQueue<>(k + 1, (a, b) -> Double.compare(a[0], b[0]));
+        for (int z = first; z <= last; z++) {
+            for (int y = 0; y < g.ySize(); y++) {
+                for (int x = 0; x < g.xSize(); x++) {
+                    double value = g.get(x, y, z);
+                    if (top.size() < k || value > top.peek()[0]) {
+                        top.add(new double[]{value, x, y, z});
+                        if (top.size() > k) {
+                            top.poll();
+                        }
+                    }
+                }
+            }
+        }
+        List<double[]> cells = new ArrayList<>(top);
+        cells.sort((a, b) -> Double.compare(b[0], a[0]));
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < cells.size(); i++) {
+            double[] c = cells.get(i);
+            json.append(i == 0 ? "\n" : ",\n").append(cellJson((int) c[1], (int) c[2], (int) c[3], c[0]));
+        }
+        return json.append("\n]").toString();
+    }
+
+    private String cellJson(int x, int y, int z, double gi) {
+        IntCube counts = cube.counts();
+        return "{\"start\": " + cube.sliceStart(z) + ", \"lat\": " + cube.latitude(x)
+                + ", \"lon\": " + cube.longitude(y) + ", \"x\": " + x + ", \"y\": " + y + ", \"z\": " + z
+                + ", \"count\": " + counts.get(x, y, z) + ", \"gi\": " + number(gi) + "}";
+    }
+
+    /**
+     * Wraps a query in a handler that only answers GET requests on exactly the given path.
+     */
+    private static HttpHandler handler(String path, Query query) {
+        return exchange -> {
+            try {
+                if (!exchange.getRequestURI().getPath().equals(path)) {
+                    respond(exchange, 404, error("Unknown path"));
+                } else if (!exchange.getRequestMethod().equals("GET")) {
+                    respond(exchange, 405, error("Only GET is supported"));
+                } else {
+                    respond(exchange, 200, query.answer(parameters(exchange.getRequestURI().getRawQuery())));
+                }
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, error(e.getMessage()));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                respond(exchange, 500, error(e.toString()));
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\": \"" + String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    private static Map<String, String> parameters(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static double number(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    /**
+     * @return A time in milliseconds since the epoch, given as such or as an ISO instant
+     */
+    private static long time(String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter time");
+        }
+        try {
+            return value.chars().allMatch(Character::isDigit) ? Long.parseLong(value) : Instant.parse(value)
+                    .toEpochMilli();
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid time: " + value);
+        }
+    }
+
+    /**
+     * @return The number as json, which has no infinities or NaN
+     */
+    private static String number(double v) {
+        return Double.isFinite(v) ? String.valueOf(v) : "null";
+    }
+}
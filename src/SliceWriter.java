@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes values per cell of a space time cube as binary chunks a viewer can fetch one time slice at a time.
+ * Every layer (the statistic, p-values, ...) gets one file per slice holding a little endian float32 per cell,
+ * cell (x, y) at x + xSize * y. A json manifest next to the chunks describes the grid, the start time of every
+ * slice, the file of every layer and slice and the range of every layer.
+ *
+ * Layers can also be written as a {@link TilePyramid} per slice, at tiles/layer/slice/level/x/y.f32, for viewers
+ * that only fetch what they show.
+ */
+public class SliceWriter {
+    public static final String MANIFEST = "manifest.json";
+
+    /**
+     * Gives the value of a cell of a layer.
+     */
+    public interface CellValue {
+        double get(int x, int y, int z);
+    }
+
+    private final Path directory;
+    private final int xSize, ySize, zSize;
+    private final long timeMin, slice;
+    private final double latMin, latMax, lonMin, lonMax;
+    private final ByteBuffer buf;
+    // Range of every layer written so far, in order of writing
+    private final Map<String, double[]> layers = new LinkedHashMap<>();
+    private final TilePyramid pyramid;
+    // How the cells of every layer written as tiles are combined
+    private final Map<String, TilePyramid.Aggregate> tileLayers = new LinkedHashMap<>();
+
+    /**
+     * @param directory The directory to write the chunks and the manifest to, it is created if needed
+     * @param timeMin Start of the first slice in milliseconds since the epoch
+     * @param slice The duration of a time slice in milliseconds
+     */
+    SliceWriter(Path directory, int xSize, int ySize, int zSize, long timeMin, long slice,
+                double latMin, double latMax, double lonMin, double lonMax) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.timeMin = timeMin;
+        this.slice = slice;
+        this.latMin = latMin;
+        this.latMax = latMax;
+        this.lonMin = lonMin;
+        this.lonMax = lonMax;
+        buf = ByteBuffer.allocateDirect(xSize * ySize * 4).order(ByteOrder.LITTLE_ENDIAN);
+        pyramid = new TilePyramid(xSize, ySize);
+    }
+
+    /**
+     * Writes a chunk per slice of a layer, replacing the chunks of an earlier layer of the same name.
+     * @param layer The name of the layer, which prefixes its files
+     */
+    public void write(String layer, CellValue value) throws IOException {
+        double max = Double.NEGATIVE_INFINITY, min = Double.POSITIVE_INFINITY;
+        for (int z = 0; z < zSize; z++) {
+            buf.clear();
+            for (int y = 0; y < ySize; y++) {
+                for (int x = 0; x < xSize; x++) {
+                    double v = value.get(x, y, z);
+                    max = Math.max(max, v);
+                    min = Math.min(min, v);
+                    buf.putFloat((float) v);
+                }
+            }
+            buf.flip();
+            try (FileChannel channel = FileChannel.open(directory.resolve(file(layer, z)), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+            }
+        }
+        layers.put(layer, new double[]{max, min});
+    }
+
+    /**
+     * Writes a pyramid of tiles per slice of a layer.
+     * @param layer The name of the layer, which names its directory under tiles
+     * @param aggregate How cells are combined when zooming out
+     */
+    public void writeTiles(String layer, CellValue value, TilePyramid.Aggregate aggregate) throws IOException {
+        // Slices of an earlier run beyond the current ones would otherwise stay behind
+        TilePyramid.delete(directory.resolve("tiles").resolve(layer));
+        float[] cells = new float[xSize * ySize];
+        for (int z = 0; z < zSize; z++) {
+            for (int y = 0; y < ySize; y++) {
+                for (int x = 0; x < xSize; x++) {
+                    cells[x + xSize * y] = (float) value.get(x, y, z);
+                }
+            }
+            pyramid.write(directory.resolve("tiles").resolve(layer).resolve(Integer.toString(z)), cells, aggregate);
+        }
+        tileLayers.put(layer, aggregate);
+    }
+
+    /**
+     * Writes the manifest of the layers written so far.
+     */
+    public void writeManifest() throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"format\": \"float32le\",\n");
+        json.append("  \"xSize\": ").append(xSize).append(", \"ySize\": ").append(ySize)
+                .append(", \"zSize\": ").append(zSize).append(",\n");
+        json.append("  \"latMin\": ").append(latMin).append(", \"latMax\": ").append(latMax)
+                .append(", \"lonMin\": ").append(lonMin).append(", \"lonMax\": ").append(lonMax).append(",\n");
+        json.append("  \"slice\": ").append(slice).append(",\n");
+        json.append("  \"layers\": {");
+        String separator = "";
+        for (Map.Entry<String, double[]> layer : layers.entrySet()) {
+            json.append(separator).append("\n    \"").append(layer.getKey()).append("\": {\"max\": ")
+                    .append(number(layer.getValue()[0])).append(", \"min\": ").append(number(layer.getValue()[1]))
+                    .append("}");
+            separator = ",";
+        }
+        json.append("\n  },\n");
+        if (!tileLayers.isEmpty()) {
+            json.append("  \"tiles\": {\"size\": ").append(TilePyramid.TILE_SIZE).append(", \"levels\": ")
+                    .append(pyramid.levels()).append(", \"path\": \"tiles/{layer}/{slice}/{level}/{x}/{y}.f32\", ")
+                    .append("\"layers\": {");
+            separator = "";
+            for (Map.Entry<String, TilePyramid.Aggregate> layer : tileLayers.entrySet()) {
+                json.append(separator).append("\"").append(layer.getKey()).append("\": \"")
+                        .append(layer.getValue().name().toLowerCase()).append("\"");
+                separator = ", ";
+            }
+            json.append("}},\n");
+        }
+        json.append("  \"slices\": [");
+        for (int z = 0; z < zSize; z++) {
+            json.append(z == 0 ? "" : ",").append("\n    {\"start\": ").append(timeMin + z * slice)
+                    .append(", \"files\": {");
+            separator = "";
+            for (String layer : layers.keySet()) {
+                json.append(separator).append("\"").append(layer).append("\": \"").append(file(layer, z))
+                        .append("\"");
+                separator = ", ";
+            }
+            json.append("}}");
+        }
+        json.append("\n  ]\n}\n");
+        Files.write(directory.resolve(MANIFEST), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String file(String layer, int z) {
+        return String.format("%s-%05d.f32", layer, z);
+    }
+
+    /**
+     * @return The number as json, which has no infinities or NaN
+     */
+    private static String number(double v) {
+        return Double.isFinite(v) ? String.valueOf(v) : "null";
+    }
+}
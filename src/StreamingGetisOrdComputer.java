@@ -0,0 +1,253 @@
+import core.GiKernel;
+import core.Neighbourhood;
+import core.Trip;
+import core.TripBatch;
+import core.Weights;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * Computes the Getis-Ord statistic while trips come in, over a sliding window of the most recent time slices.
+ * Trips are expected roughly in order of pickup time: once a trip is picked up in a later slice, the slices
+ * before it are closed. Trips that arrive for a closed slice are dropped and counted as late.
+ *
+ * Closing a slice sums the weighted spatial neighbourhood of its cells and adds it to the window, the slice that
+ * falls out of the window is subtracted again. The statistic of a slice needs the slices up to rz after it, so
+ * it is emitted as soon as that slice closes. Emitting costs a few passes over a single slice, independent of
+ * the size of the window.
+ */
+public class StreamingGetisOrdComputer implements TripListener {
+    // A trip may jump the time axis ahead by at most this much, trips further out are seen as invalid data
+    private static final long MAX_GROWTH = 31L * 24 * 60 * 60 * 1000;
+    // Dropoffs may lie this far ahead of the newest pickup
+    private static final long LOOKAHEAD = 24L * 60 * 60 * 1000;
+
+    /**
+     * Receives the statistic of every slice once it is known.
+     */
+    public interface SliceListener {
+        /**
+         * @param start Start of the slice in milliseconds since the epoch
+         * @param gi The statistic of the cells of the slice at x + xSize * y. The array is reused once this
+         *           returns, so it must not be kept
+         * @param max The largest statistic of the slice
+         * @param min The smallest statistic of the slice
+         * @param nanos The time it took to close the slice and compute its statistic
+         */
+        void slice(long start, double[] gi, double max, double min, long nanos);
+    }
+
+    private final double latMin = 40.9, latMax = 40.5, lonMin = -74.25, lonMax = -73.7;
+    private final double latDelta, lonDelta;
+    private final int xSize, ySize, sliceSize;
+    private final long slice;
+    private final Weights weights;
+    private final int rz;
+    private final int window, maxGrowth, lookahead;
+    private final SliceListener listener;
+    private final GiKernel kernel = GiKernel.best();
+
+    // Counts and spatial neighbourhood sums of the slices in the window and the open slices, slice z is at
+    // z % capacity
+    private final int[][] counts;
+    private final double[][] boxes;
+    private final int capacity;
+
+    // Start of the time axis, the start of the day of the first trip
+    private long timeDmin;
+    private boolean timeKnown = false;
+    // Newest pickup slice, the first slice that is not closed and the first slice whose statistic is not emitted
+    private int watermark = 0, open = 0, emitted = 0;
+    // Newest slice holding a dropoff
+    private int newest = 0;
+    // Sums over the closed slices in the window
+    private long sumXj = 0, sumXj2 = 0;
+    private int closedSlices = 0;
+
+    private int count = 0, late = 0, invalid = 0;
+    private final int[] pickupTile = new int[2], dropoffTile = new int[2];
+    private final double[] sumWijXj;
+    private final double[] gi;
+
+    /**
+     * Creates a streaming computer printing the range of the statistic of every slice.
+     */
+    StreamingGetisOrdComputer(int window) {
+        this(225, 225, GetisOrdComputer.DEFAULT_SLICE, Weights.binary(Neighbourhood.CUBE_3), window,
+                (start, gi, max, min, nanos) -> System.out.println(
+                        Instant.ofEpochMilli(start) + "\tmax: " + max + " , min: " + min + "\t"
+                                + nanos / 1000 + " us"));
+    }
+
+    /**
+     * @param xSize The number of cells along the latitude axis
+     * @param ySize The number of cells along the longitude axis
+     * @param slice The duration of a time slice in milliseconds
+     * @param weights The weights of the cells around a cell the statistic of that cell is computed over
+     * @param window The number of slices the mean and deviation are taken over, at least the height of the
+     *               neighbourhood
+     * @param listener Receives the statistic of every slice
+     */
+    StreamingGetisOrdComputer(int xSize, int ySize, long slice, Weights weights, int window,
+                              SliceListener listener) {
+        if (window < 2 * weights.neighbourhood.rz + 1) {
+            throw new IllegalArgumentException("Window of " + window + " slices does not hold a neighbourhood");
+        }
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.sliceSize = xSize * ySize;
+        this.slice = slice;
+        this.weights = weights;
+        this.rz = weights.neighbourhood.rz;
+        this.window = window;
+        this.listener = listener;
+
+        latDelta = (latMax - latMin)/xSize;
+        lonDelta = (lonMax - lonMin)/ySize;
+        maxGrowth = (int) Math.max(1, MAX_GROWTH / slice);
+        lookahead = (int) Math.max(1, (LOOKAHEAD + slice - 1) / slice);
+
+        // Open slices lie at most lookahead after the newest pickup, so they never share a slot with the window
+        capacity = window + lookahead + 1;
+        counts = new int[capacity][sliceSize];
+        boxes = new double[capacity][];
+        sumWijXj = new double[sliceSize];
+        gi = new double[sliceSize];
+    }
+
+    private boolean cubeMap(double lat, double lon, int[] loc) {
+        loc[0] = (int) Math.floor((lat-latMin) / latDelta);
+        loc[1] = (int) Math.floor((lon-lonMin) / lonDelta);
+
+        return loc[0] >= 0 && loc[0] < xSize && loc[1] >= 0 && loc[1] < ySize;
+    }
+
+    private int timeMap(long time) {
+        double z = Math.floor((time-timeDmin) / (double) slice);
+        return (int) Math.max(-Integer.MAX_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, z));
+    }
+
+    @Override
+    public void newTrip(Trip t) {
+        addTrip(t.pickup_location.latitude(), t.pickup_location.longitude(), t.pickup_datetime.getTime(),
+                t.dropoff_location.latitude(), t.dropoff_location.longitude(), t.dropoff_datetime.getTime());
+    }
+
+    @Override
+    public void newTrips(TripBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            addTrip(batch.pickup_latitude[i], batch.pickup_longitude[i], batch.pickup_datetime[i],
+                    batch.dropoff_latitude[i], batch.dropoff_longitude[i], batch.dropoff_datetime[i]);
+        }
+    }
+
+    private void addTrip(double pickupLat, double pickupLon, long pickupTime,
+                         double dropoffLat, double dropoffLon, long dropoffTime) {
+        count++;
+        if (!cubeMap(pickupLat, pickupLon, pickupTile) || !cubeMap(dropoffLat, dropoffLon, dropoffTile)) {
+            // Trip has invalid data
+            invalid++;
+            return;
+        }
+        if (!timeKnown) {
+            ZoneId zone = ZoneId.systemDefault();
+            timeDmin = Instant.ofEpochMilli(pickupTime).atZone(zone).toLocalDate().atStartOfDay(zone)
+                    .toInstant().toEpochMilli();
+            timeKnown = true;
+        }
+
+        int pickupZ = timeMap(pickupTime), dropoffZ = timeMap(dropoffTime);
+        if (dropoffZ < pickupZ || dropoffZ > pickupZ + lookahead || pickupZ > watermark + maxGrowth) {
+            // Trip has invalid data
+            invalid++;
+            return;
+        }
+        if (pickupZ < open) {
+            late++;
+            return;
+        }
+
+        // All pickups of the slices before this one have been seen
+        watermark = Math.max(watermark, pickupZ);
+        while (open < watermark) {
+            close();
+        }
+        newest = Math.max(newest, dropoffZ);
+        counts[pickupZ % capacity][pickupTile[0] + xSize * pickupTile[1]]++;
+        counts[dropoffZ % capacity][dropoffTile[0] + xSize * dropoffTile[1]]++;
+    }
+
+    /**
+     * Closes the oldest open slice, moves the window forward and emits the slice whose neighbourhood is now known.
+     */
+    private void close() {
+        long start = System.nanoTime();
+        int z = open++;
+        int[] cells = counts[z % capacity];
+        boxes[z % capacity] = weights.sumSlice(cells, xSize, ySize);
+        for (int xj : cells) {
+            sumXj += xj;
+            sumXj2 += (long) xj * xj;
+        }
+        closedSlices++;
+
+        int expired = z - window;
+        if (expired >= 0) {
+            int[] old = counts[expired % capacity];
+            for (int xj : old) {
+                sumXj -= xj;
+                sumXj2 -= (long) xj * xj;
+            }
+            closedSlices--;
+            // The slot is reused by a slice further ahead
+            Arrays.fill(old, 0);
+            boxes[expired % capacity] = null;
+        }
+
+        if (z - rz >= 0) {
+            emit(z - rz, z, start);
+        }
+    }
+
+    /**
+     * Computes the statistic of a slice and hands it to the listener.
+     * @param z The slice
+     * @param last The newest closed slice
+     */
+    private void emit(int z, int last, long start) {
+        Arrays.fill(sumWijXj, 0);
+        int oldest = open - closedSlices;
+        for (int zp = Math.max(oldest, z - rz); zp <= Math.min(last, z + rz); zp++) {
+            double[] box = boxes[zp % capacity];
+            double weight = weights.weightZ(zp - z);
+            for (int i = 0; i < sliceSize; i++) {
+                sumWijXj[i] += weight * box[i];
+            }
+        }
+
+        long n = (long) closedSlices * sliceSize;
+        double xbar = (double) sumXj / n;
+        double S = Math.sqrt((double) sumXj2 / n - xbar * xbar);
+        // The window is a cube of its own, whose first and last slices have cut off neighbourhoods
+        Weights.Tables tables = weights.tables(xSize, ySize, closedSlices);
+
+        double[] range = {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+        kernel.compute(sumWijXj, gi, 0, tables.sumWij(z - oldest), tables.deviation(z - oldest), xbar, S, range);
+        emitted = z + 1;
+        listener.slice(timeDmin + z * slice, gi, range[0], range[1], System.nanoTime() - start);
+    }
+
+    @Override
+    public void done() {
+        // Close the slices that still hold dropoffs, then emit the last slices with the neighbourhoods they have
+        while (timeKnown && open <= newest) {
+            close();
+        }
+        for (int z = emitted; z < open; z++) {
+            emit(z, open - 1, System.nanoTime());
+        }
+        System.out.println(count + " trips, " + emitted + " slices, " + late + " late, " + invalid + " invalid");
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Aggregates a grid of values into a pyramid of tiles, so a viewer only fetches the tiles it shows at its zoom.
+ * The deepest level holds the cells of the grid, every level above it combines 2x2 cells of the level below, up to
+ * level 0 which is a single tile. A tile holds {@link #TILE_SIZE}^2 little endian float32 cells, cell (x, y) at
+ * x + TILE_SIZE * y, and is stored at level/x/y.f32. Cells beyond the grid are NaN. Tiles holding nothing but
+ * zeros and NaN are not written, a viewer treats a missing tile as empty. Writing a pyramid therefore first deletes
+ * whatever its directory held, so no tile of an earlier run is left to be read as part of this one.
+ */
+public class TilePyramid {
+    public static final int TILE_SIZE = 64;
+
+    /**
+     * How the cells of a level are combined into a cell of the level above.
+     */
+    public enum Aggregate {
+        // Counts add up
+        SUM,
+        // The most extreme statistic survives, so a hot spot stays visible when zoomed out
+        MAX
+    }
+
+    private final int xSize, ySize, levels;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(TILE_SIZE * TILE_SIZE * 4)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * @param xSize The number of cells of the grid along x
+     * @param ySize The number of cells of the grid along y
+     */
+    TilePyramid(int xSize, int ySize) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        int levels = 1;
+        while (TILE_SIZE << (levels - 1) < Math.max(xSize, ySize)) {
+            levels++;
+        }
+        this.levels = levels;
+    }
+
+    /**
+     * @return The number of levels, the tiles of level l cover the grid in 2^l x 2^l tiles
+     */
+    public int levels() {
+        return levels;
+    }
+
+    /**
+     * Writes the pyramid of a grid.
+     * @param directory The directory to write the levels to, it is created if needed and its contents are deleted
+     * @param cells The values of the grid, cell (x, y) at x + xSize * y
+     * @return The number of tiles written
+     */
+    public int write(Path directory, float[] cells, Aggregate aggregate) throws IOException {
+        delete(directory);
+
+        // The deepest level, padded to whole tiles
+        int size = TILE_SIZE << (levels - 1);
+        float[] level = new float[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                level[x + size * y] = x < xSize && y < ySize ? cells[x + xSize * y] : Float.NaN;
+            }
+        }
+
+        int written = 0;
+        for (int l = levels - 1; l >= 0; l--) {
+            written += writeLevel(directory.resolve(Integer.toString(l)), level, size);
+            if (l > 0) {
+                level = combine(level, size, aggregate);
+                size /= 2;
+            }
+        }
+        return written;
+    }
+
+    private int writeLevel(Path directory, float[] level, int size) throws IOException {
+        int written = 0;
+        for (int tx = 0; tx < size / TILE_SIZE; tx++) {
+            for (int ty = 0; ty < size / TILE_SIZE; ty++) {
+                buf.clear();
+                boolean empty = true;
+                for (int y = ty * TILE_SIZE; y < (ty + 1) * TILE_SIZE; y++) {
+                    for (int x = tx * TILE_SIZE; x < (tx + 1) * TILE_SIZE; x++) {
+                        float v = level[x + size * y];
+                        empty &= v == 0 || Float.isNaN(v);
+                        buf.putFloat(v);
+                    }
+                }
+                if (empty) {
+                    continue;
+                }
+                buf.flip();
+                Path column = Files.createDirectories(directory.resolve(Integer.toString(tx)));
+                try (FileChannel channel = FileChannel.open(column.resolve(ty + ".f32"), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (buf.hasRemaining()) {
+                        channel.write(buf);
+                    }
+                }
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Deletes a directory with everything in it, if it exists.
+     */
+    public static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            // Children before their parents
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * @return The level above a level, combining 2x2 cells; NaN cells are left out, 4 of them give NaN
+     */
+    private static float[] combine(float[] level, int size, Aggregate aggregate) {
+        int half = size / 2;
+        float[] above = new float[half * half];
+        for (int y = 0; y < half; y++) {
+            for (int x = 0; x < half; x++) {
+                float v = Float.NaN;
+                for (int i = 0; i < 4; i++) {
+                    float c = level[2 * x + (i & 1) + size * (2 * y + (i >> 1))];
+                    if (Float.isNaN(c)) {
+                        continue;
+                    }
+                    v = Float.isNaN(v) ? c : aggregate == Aggregate.SUM ? v + c : Math.max(v, c);
+                }
+                above[x + half * y] = v;
+            }
+        }
+        return above;
+    }
+}
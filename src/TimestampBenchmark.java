@@ -0,0 +1,78 @@
+import core.TimestampParser;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Random;
+
+/**
+ * Compares the per row SimpleDateFormat that Trip used to create against TimestampParser.
+ * Every variant parses the same set of timestamps a number of rounds; the first rounds are warm up.
+ */
+public class TimestampBenchmark {
+    private static final int TIMESTAMPS = 100000;
+    private static final int WARMUP_ROUNDS = 5, ROUNDS = 10;
+
+    public static void main(String[] args) throws ParseException {
+        String[] timestamps = new String[TIMESTAMPS];
+        byte[][] bytes = new byte[TIMESTAMPS][];
+        Random random = new Random(42);
+        for (int i = 0; i < TIMESTAMPS; i++) {
+            timestamps[i] = String.format("2016-01-%02d %02d:%02d:%02d",
+                    random.nextInt(31) + 1, random.nextInt(24), random.nextInt(60), random.nextInt(60));
+            bytes[i] = timestamps[i].getBytes(StandardCharsets.US_ASCII);
+        }
+
+        // Make sure all variants agree before timing them
+        SimpleDateFormat shared = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (int i = 0; i < TIMESTAMPS; i++) {
+            long expected = shared.parse(timestamps[i]).getTime();
+            if (TimestampParser.LOCAL.parse(timestamps[i]) != expected
+                    || TimestampParser.LOCAL.parse(bytes[i], 0, bytes[i].length) != expected) {
+                throw new IllegalStateException("Parsers disagree on " + timestamps[i]);
+            }
+        }
+
+        System.out.println("variant\tns/op");
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            boolean report = round >= WARMUP_ROUNDS;
+            long sink = 0;
+
+            long start = System.nanoTime();
+            for (String s : timestamps) {
+                sink += new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(s).getTime();
+            }
+            print(report, "SimpleDateFormat per row", start);
+
+            start = System.nanoTime();
+            for (String s : timestamps) {
+                sink += shared.parse(s).getTime();
+            }
+            print(report, "SimpleDateFormat shared", start);
+
+            start = System.nanoTime();
+            for (String s : timestamps) {
+                sink += TimestampParser.LOCAL.parse(s);
+            }
+            print(report, "TimestampParser chars", start);
+
+            start = System.nanoTime();
+            for (byte[] b : bytes) {
+                sink += TimestampParser.LOCAL.parse(b, 0, b.length);
+            }
+            print(report, "TimestampParser bytes", start);
+
+            if (sink == 42) {
+                // Keeps the JIT from dropping the loops
+                System.out.println(sink);
+            }
+        }
+    }
+
+    private static void print(boolean report, String variant, long start) {
+        long end = System.nanoTime();
+        if (report) {
+            System.out.println(variant + "\t" + (end - start) / TIMESTAMPS);
+        }
+    }
+}
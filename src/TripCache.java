@@ -0,0 +1,471 @@
+import core.Trip;
+import core.TripBatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary columnar cache of a trip file. A csv file is converted once, after which runs memory map the cache and
+ * stream its columns straight into {@link TripBatch}es, skipping all text parsing.
+ *
+ * The file starts with a {@link #HEADER_SIZE} byte header holding the row count and the bounds of the trips,
+ * followed by one column per trip field in csv order. Every column is a little endian array of fixed width
+ * values (bytes, longs or doubles, see {@link #WIDTHS}) padded to a multiple of 8 bytes. Trips that lie
+ * completely outside of the area the computers look at are not stored.
+ */
+public class TripCache {
+    public static final String EXTENSION = ".trips";
+
+    // "TRIP" when read as little endian
+    private static final int MAGIC = 0x50495254;
+    // Version 1 caches may have the last byte of their last column zeroed
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 128;
+    // Bytes per value of every column, in csv order
+    private static final int[] WIDTHS = {1, 8, 8, 1, 8, 8, 8, 1, 1, 8, 8, 1, 8, 8, 8, 8, 8, 8, 8};
+
+    // Trips with neither the pickup nor the dropoff inside these bounds are left out of the cache
+    public static final double LAT_MIN = 40.5, LAT_MAX = 40.9, LON_MIN = -74.25, LON_MAX = -73.7;
+
+    /**
+     * The contents of the cache header.
+     */
+    public static class Header {
+        public long rowCount;
+        public double latMin, latMax, lonMin, lonMax;
+        public long timeMin, timeMax;
+    }
+
+    public static void parse(String cacheFile) {
+        parse(cacheFile, -1);
+    }
+
+    public static void parse(String cacheFile, int tripCount) {
+        try {
+            read(cacheFile, tripCount, CSVReader.listeners);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        CSVReader.done();
+    }
+
+    /**
+     * Converts a csv file into a cache file.
+     * @param csvFile The csv file to read
+     * @param cacheFile The cache file to write, it is replaced if it exists
+     * @return The number of trips stored
+     */
+    public static long convert(String csvFile, String cacheFile) throws IOException {
+        Path target = Paths.get(cacheFile).toAbsolutePath();
+        try (CacheWriter writer = new CacheWriter(target);
+             FileChannel channel = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+            MappedCSVReader.read(channel, 0, channel.size(), true, -1, Collections.singletonList(writer));
+            return writer.finish();
+        }
+    }
+
+    /**
+     * @return The name of the cache file of a csv file, next to the csv file
+     */
+    public static String cacheFileFor(String csvFile) {
+        String base = csvFile.endsWith(".csv") ? csvFile.substring(0, csvFile.length() - 4) : csvFile;
+        return base + EXTENSION;
+    }
+
+    public static Header readHeader(String cacheFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(cacheFile), StandardOpenOption.READ)) {
+            return readHeader(channel);
+        }
+    }
+
+    /**
+     * Streams the trips of a cache file to the given listeners.
+     * @param cacheFile The cache file
+     * @param tripCount The maximum number of trips to read, -1 for all
+     * @param targets The listeners receiving the trips
+     * @return The number of trips read
+     */
+    static long read(String cacheFile, long tripCount, List<? extends TripListener> targets) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(cacheFile), StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            long rows = tripCount == -1 ? header.rowCount : Math.min(tripCount, header.rowCount);
+
+            ByteBuffer[] columns = map(channel, header, cacheFile);
+            TripBatch batch = new TripBatch();
+            for (long read = 0; read < rows; read += batch.size()) {
+                fill(columns, batch, (int) Math.min(batch.capacity(), rows - read));
+                for (TripListener tl : targets) {
+                    tl.newTrips(batch);
+                }
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Maps every column on its own, a column may not exceed 2GB.
+     */
+    private static ByteBuffer[] map(FileChannel channel, Header header, String cacheFile) throws IOException {
+        ByteBuffer[] columns = new ByteBuffer[WIDTHS.length];
+        long offset = HEADER_SIZE;
+        for (int c = 0; c < WIDTHS.length; c++) {
+            long length = header.rowCount * WIDTHS[c];
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Column " + c + " of " + cacheFile + " is too large to map");
+            }
+            MappedByteBuffer column = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            columns[c] = column.order(ByteOrder.LITTLE_ENDIAN);
+            offset += padded(length);
+        }
+        return columns;
+    }
+
+    /**
+     * Fills a batch with the next rows of the mapped columns.
+     * @param n The number of rows, at most the capacity of the batch
+     */
+    private static void fill(ByteBuffer[] columns, TripBatch batch, int n) {
+        columns[0].get(batch.VendorID, 0, n);
+        columns[1].asLongBuffer().get(batch.pickup_datetime, 0, n);
+        columns[2].asLongBuffer().get(batch.dropoff_datetime, 0, n);
+        columns[3].get(batch.passenger_count, 0, n);
+        columns[4].asDoubleBuffer().get(batch.trip_distance, 0, n);
+        columns[5].asDoubleBuffer().get(batch.pickup_longitude, 0, n);
+        columns[6].asDoubleBuffer().get(batch.pickup_latitude, 0, n);
+        columns[7].get(batch.RatecodeID, 0, n);
+        for (int i = 0; i < n; i++) {
+            batch.store_and_fwd_flag[i] = columns[8].get() != 0;
+        }
+        columns[9].asDoubleBuffer().get(batch.dropoff_longitude, 0, n);
+        columns[10].asDoubleBuffer().get(batch.dropoff_latitude, 0, n);
+        columns[11].get(batch.payment_type, 0, n);
+        columns[12].asDoubleBuffer().get(batch.fare_amount, 0, n);
+        columns[13].asDoubleBuffer().get(batch.extra, 0, n);
+        columns[14].asDoubleBuffer().get(batch.mta_tax, 0, n);
+        columns[15].asDoubleBuffer().get(batch.tip_amount, 0, n);
+        columns[16].asDoubleBuffer().get(batch.tolls_amount, 0, n);
+        columns[17].asDoubleBuffer().get(batch.improvement_surcharge, 0, n);
+        columns[18].asDoubleBuffer().get(batch.total_amount, 0, n);
+        // The views above do not move the columns themselves
+        for (int c = 0; c < WIDTHS.length; c++) {
+            if (WIDTHS[c] == 8) {
+                columns[c].position(columns[c].position() + n * 8);
+            }
+        }
+        batch.setSize(n);
+    }
+
+    /**
+     * @return Whether a cache file exists and is of the current version
+     */
+    public static boolean isCurrent(String cacheFile) {
+        try {
+            readHeader(cacheFile);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks that a cache file holds exactly the trips of a csv file that lie in the cache bounds, comparing every
+     * column of every row.
+     * @throws IOException If the files can not be read or differ, naming the first row and column that differs
+     */
+    public static void verify(String csvFile, String cacheFile) throws IOException {
+        try (FileChannel cache = FileChannel.open(Paths.get(cacheFile), StandardOpenOption.READ);
+             FileChannel csv = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+            Header header = readHeader(cache);
+            ByteBuffer[] columns = map(cache, header, cacheFile);
+            TripBatch cached = new TripBatch();
+            long[] row = {0};
+            String[] mismatch = {null};
+            TripListener check = new TripListener() {
+                @Override
+                public void newTrip(Trip t) {
+                    throw new UnsupportedOperationException("The trip cache is checked from batches only");
+                }
+
+                @Override
+                public void newTrips(TripBatch batch) {
+                    for (int i = 0; i < batch.size() && mismatch[0] == null; i++) {
+                        if (!inBounds(batch.pickup_latitude[i], batch.pickup_longitude[i])
+                                && !inBounds(batch.dropoff_latitude[i], batch.dropoff_longitude[i])) {
+                            continue;
+                        }
+                        if (row[0] >= header.rowCount) {
+                            mismatch[0] = "row " + row[0] + " is missing";
+                            return;
+                        }
+                        int j = (int) (row[0] % cached.capacity());
+                        if (j == 0) {
+                            fill(columns, cached, (int) Math.min(cached.capacity(), header.rowCount - row[0]));
+                        }
+                        String column = differingColumn(batch, i, cached, j);
+                        if (column != null) {
+                            mismatch[0] = "row " + row[0] + " differs in " + column;
+                        }
+                        row[0]++;
+                    }
+                }
+
+                @Override
+                public void done() {
+                }
+            };
+            MappedCSVReader.read(csv, 0, csv.size(), true, -1, Collections.singletonList(check));
+            if (mismatch[0] == null && row[0] != header.rowCount) {
+                mismatch[0] = "it holds " + header.rowCount + " rows instead of " + row[0];
+            }
+            if (mismatch[0] != null) {
+                throw new IOException("Trip cache " + cacheFile + " does not match " + csvFile + ": " + mismatch[0]);
+            }
+        }
+    }
+
+    /**
+     * @return The name of the first column in which row i of a and row j of b differ, null if they are the same
+     */
+    private static String differingColumn(TripBatch a, int i, TripBatch b, int j) {
+        if (a.VendorID[i] != b.VendorID[j]) return "VendorID";
+        if (a.pickup_datetime[i] != b.pickup_datetime[j]) return "pickup_datetime";
+        if (a.dropoff_datetime[i] != b.dropoff_datetime[j]) return "dropoff_datetime";
+        if (a.passenger_count[i] != b.passenger_count[j]) return "passenger_count";
+        if (differ(a.trip_distance[i], b.trip_distance[j])) return "trip_distance";
+        if (differ(a.pickup_longitude[i], b.pickup_longitude[j])) return "pickup_longitude";
+        if (differ(a.pickup_latitude[i], b.pickup_latitude[j])) return "pickup_latitude";
+        if (a.RatecodeID[i] != b.RatecodeID[j]) return "RatecodeID";
+        if (a.store_and_fwd_flag[i] != b.store_and_fwd_flag[j]) return "store_and_fwd_flag";
+        if (differ(a.dropoff_longitude[i], b.dropoff_longitude[j])) return "dropoff_longitude";
+        if (differ(a.dropoff_latitude[i], b.dropoff_latitude[j])) return "dropoff_latitude";
+        if (a.payment_type[i] != b.payment_type[j]) return "payment_type";
+        if (differ(a.fare_amount[i], b.fare_amount[j])) return "fare_amount";
+        if (differ(a.extra[i], b.extra[j])) return "extra";
+        if (differ(a.mta_tax[i], b.mta_tax[j])) return "mta_tax";
+        if (differ(a.tip_amount[i], b.tip_amount[j])) return "tip_amount";
+        if (differ(a.tolls_amount[i], b.tolls_amount[j])) return "tolls_amount";
+        if (differ(a.improvement_surcharge[i], b.improvement_surcharge[j])) return "improvement_surcharge";
+        if (differ(a.total_amount[i], b.total_amount[j])) return "total_amount";
+        return null;
+    }
+
+    private static boolean differ(double a, double b) {
+        return Double.doubleToLongBits(a) != Double.doubleToLongBits(b);
+    }
+
+    private static boolean inBounds(double lat, double lon) {
+        return lat >= LAT_MIN && lat < LAT_MAX && lon >= LON_MIN && lon < LON_MAX;
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, buf.position()) < 0) {
+                throw new IOException("Trip cache is truncated");
+            }
+        }
+        buf.flip();
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw new IOException("Not a trip cache of version " + VERSION);
+        }
+        Header header = new Header();
+        header.rowCount = buf.getLong();
+        header.latMin = buf.getDouble();
+        header.latMax = buf.getDouble();
+        header.lonMin = buf.getDouble();
+        header.lonMax = buf.getDouble();
+        header.timeMin = buf.getLong();
+        header.timeMax = buf.getLong();
+        return header;
+    }
+
+    private static long padded(long length) {
+        return (length + 7) & ~7L;
+    }
+
+    /**
+     * Receives the trips of a csv file and appends the valid ones to one temporary file per column, which are
+     * joined into the cache file once all trips are in.
+     */
+    private static class CacheWriter implements TripListener, AutoCloseable {
+        private final Path target;
+        private final Path[] columnFiles = new Path[WIDTHS.length];
+        private final FileChannel[] columns = new FileChannel[WIDTHS.length];
+        private ByteBuffer buf = ByteBuffer.allocateDirect(TripBatch.DEFAULT_CAPACITY * 8)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        private int[] selected = new int[TripBatch.DEFAULT_CAPACITY];
+        // Trips received one at a time, written once the batch is full or all trips are in
+        private final TripBatch pending = new TripBatch();
+        private final Header header = new Header();
+
+        CacheWriter(Path target) throws IOException {
+            this.target = target;
+            for (int c = 0; c < WIDTHS.length; c++) {
+                columnFiles[c] = Files.createTempFile(target.getParent(), "column" + c, ".tmp");
+                columns[c] = FileChannel.open(columnFiles[c], StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            header.latMin = header.lonMin = Double.MAX_VALUE;
+            header.latMax = header.lonMax = -Double.MAX_VALUE;
+            header.timeMin = Long.MAX_VALUE;
+            header.timeMax = Long.MIN_VALUE;
+        }
+
+        @Override
+        public void newTrip(Trip t) {
+            pending.add(t);
+            if (pending.isFull()) {
+                writePending();
+            }
+        }
+
+        private void writePending() {
+            newTrips(pending);
+            pending.clear();
+        }
+
+        @Override
+        public void newTrips(TripBatch batch) {
+            if (selected.length < batch.size()) {
+                selected = new int[batch.size()];
+                buf = ByteBuffer.allocateDirect(batch.size() * 8).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            int n = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                if (inBounds(batch.pickup_latitude[i], batch.pickup_longitude[i])
+                        || inBounds(batch.dropoff_latitude[i], batch.dropoff_longitude[i])) {
+                    selected[n++] = i;
+                    updateBounds(batch, i);
+                }
+            }
+            header.rowCount += n;
+
+            try {
+                write(0, batch.VendorID, n);
+                write(1, batch.pickup_datetime, n);
+                write(2, batch.dropoff_datetime, n);
+                write(3, batch.passenger_count, n);
+                write(4, batch.trip_distance, n);
+                write(5, batch.pickup_longitude, n);
+                write(6, batch.pickup_latitude, n);
+                write(7, batch.RatecodeID, n);
+                for (int i = 0; i < n; i++) {
+                    buf.put((byte) (batch.store_and_fwd_flag[selected[i]] ? 1 : 0));
+                }
+                flush(8);
+                write(9, batch.dropoff_longitude, n);
+                write(10, batch.dropoff_latitude, n);
+                write(11, batch.payment_type, n);
+                write(12, batch.fare_amount, n);
+                write(13, batch.extra, n);
+                write(14, batch.mta_tax, n);
+                write(15, batch.tip_amount, n);
+                write(16, batch.tolls_amount, n);
+                write(17, batch.improvement_surcharge, n);
+                write(18, batch.total_amount, n);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write trip cache " + target, e);
+            }
+        }
+
+        @Override
+        public void done() {
+        }
+
+        /**
+         * Writes the header and joins the columns into the cache file.
+         * @return The number of trips stored
+         */
+        long finish() throws IOException {
+            if (pending.size() > 0) {
+                writePending();
+            }
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                buf.clear();
+                buf.putInt(MAGIC).putInt(VERSION).putLong(header.rowCount);
+                buf.putDouble(header.latMin).putDouble(header.latMax);
+                buf.putDouble(header.lonMin).putDouble(header.lonMax);
+                buf.putLong(header.timeMin).putLong(header.timeMax);
+                while (buf.position() < HEADER_SIZE) {
+                    buf.put((byte) 0);
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+
+                long position = HEADER_SIZE;
+                for (int c = 0; c < WIDTHS.length; c++) {
+                    long length = columns[c].size();
+                    for (long done = 0; done < length; ) {
+                        done += columns[c].transferTo(done, length - done, out);
+                    }
+                    position += padded(length);
+                    out.position(position);
+                }
+                // Make sure the padding of the last column exists; a column without padding ends the file already
+                if (out.size() < position) {
+                    out.write(ByteBuffer.allocate(1), position - 1);
+                }
+            }
+            return header.rowCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (int c = 0; c < WIDTHS.length; c++) {
+                if (columns[c] != null) {
+                    columns[c].close();
+                }
+                Files.deleteIfExists(columnFiles[c]);
+            }
+        }
+
+        private void updateBounds(TripBatch batch, int i) {
+            header.latMin = Math.min(header.latMin, Math.min(batch.pickup_latitude[i], batch.dropoff_latitude[i]));
+            header.latMax = Math.max(header.latMax, Math.max(batch.pickup_latitude[i], batch.dropoff_latitude[i]));
+            header.lonMin = Math.min(header.lonMin, Math.min(batch.pickup_longitude[i], batch.dropoff_longitude[i]));
+            header.lonMax = Math.max(header.lonMax, Math.max(batch.pickup_longitude[i], batch.dropoff_longitude[i]));
+            header.timeMin = Math.min(header.timeMin, Math.min(batch.pickup_datetime[i], batch.dropoff_datetime[i]));
+            header.timeMax = Math.max(header.timeMax, Math.max(batch.pickup_datetime[i], batch.dropoff_datetime[i]));
+        }
+
+        private void write(int column, byte[] values, int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                buf.put(values[selected[i]]);
+            }
+            flush(column);
+        }
+
+        private void write(int column, long[] values, int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                buf.putLong(values[selected[i]]);
+            }
+            flush(column);
+        }
+
+        private void write(int column, double[] values, int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                buf.putDouble(values[selected[i]]);
+            }
+            flush(column);
+        }
+
+        private void flush(int column) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                columns[column].write(buf);
+            }
+            buf.clear();
+        }
+    }
+}
@@ -1,9 +1,22 @@
 import core.Trip;
+import core.TripBatch;
 
 /**
  * Created by ruudandriessen on 21/02/2017.
  */
 public interface TripListener {
     void newTrip(Trip t);
+
+    /**
+     * Receives a batch of trips. The batch is reused by the caller once this returns, so it must not be kept.
+     * Listeners that do not override this get every trip of the batch through {@link #newTrip(Trip)}.
+     * @param batch The trips
+     */
+    default void newTrips(TripBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            newTrip(new Trip(batch, i));
+        }
+    }
+
     void done();
 }
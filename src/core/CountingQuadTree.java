@@ -0,0 +1,474 @@
+package core;
+
+import core.QuadTree.AxisAlignedBoundingBox;
+import core.QuadTree.QuadNode;
+import core.QuadTree.XYPoint;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A quadtree that keeps how many points fell in every node instead of the points themselves, and optionally the
+ * sums of values that come with the points, such as fares or passengers. Every node takes the same memory however
+ * many points fall in it, so a month of pickups and dropoffs fits in a tree the size of its structure.
+ *
+ * Subdivision adapts to the points as in {@link QuadTree.PointRegionQuadTree}: a leaf counts the points that fall
+ * in it until it has counted leafCapacity of them, then it subdivides and later points go to its children. Having
+ * no points to hand down, a leaf counts them per quadrant of its box, and hands each child the count of its
+ * quadrant; where they lie inside that quadrant is not known, so points a child is handed stay in it when it
+ * subdivides in turn. Where a node is only partly asked for, in range counts and densities, the points it keeps
+ * count as spread evenly over its box or quadrant. Points at the same location are all counted.
+ *
+ * Counts are estimates wherever a node is only partly asked for. It is not a {@link QuadTree}, as it has no points
+ * to answer range queries with; code that only walks the nodes takes either tree as a {@link QuadNodeTree}.
+ */
+public class CountingQuadTree implements QuadNodeTree<XYPoint> {
+    private static final double[] NO_VALUES = new double[0];
+
+    private final CountingQuadNode root;
+    private final int leafCapacity;
+    private final int maxHeight;
+    private final int values;
+    // Deepest level of a node
+    private int height = 0;
+
+    /**
+     * Create a quadtree who's upper left coordinate is located at x,y and it's bounding box is described
+     * by the height and width.
+     *
+     * @param x Upper left X coordinate
+     * @param y Upper left Y coordinate
+     * @param width Width of the bounding box containing all points
+     * @param height Height of the bounding box containing all points
+     * @param leafCapacity Number of points a leaf counts before it subdivides
+     * @param maxTreeHeight Max height of the quadtree, leaves at this height never subdivide
+     */
+    public CountingQuadTree(double x, double y, double width, double height, int leafCapacity, int maxTreeHeight) {
+        this(x, y, width, height, leafCapacity, maxTreeHeight, 0);
+    }
+
+    /**
+     * @param values The number of values that come with every point and are summed per node
+     * @see #CountingQuadTree(double, double, double, double, int, int)
+     */
+    public CountingQuadTree(double x, double y, double width, double height, int leafCapacity, int maxTreeHeight,
+                            int values) {
+        if (leafCapacity < 1 || maxTreeHeight < 1 || values < 0) {
+            throw new IllegalArgumentException("Invalid leaf capacity, height or number of values");
+        }
+        this.leafCapacity = leafCapacity;
+        this.maxHeight = maxTreeHeight;
+        this.values = values;
+        root = new CountingQuadNode(new AxisAlignedBoundingBox(new XYPoint(x, y), width, height, 0), null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public QuadNode<XYPoint> getRoot() {
+        return root;
+    }
+
+    /**
+     * @return The deepest level of a node, 0 for a tree that has not subdivided
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return QuadTree.TreePrinter.getString(this);
+    }
+
+    public String toJson() {
+        return QuadTree.TreePrinter.getJson(this);
+    }
+
+    /**
+     * Counts a point.
+     *
+     * @return False if the point is not in the tree
+     */
+    public boolean insert(double x, double y) {
+        return insert(x, y, NO_VALUES);
+    }
+
+    /**
+     * Counts a point and adds its values to the sums.
+     *
+     * @param values The values that come with the point, as many as the tree sums
+     * @return False if the point is not in the tree
+     */
+    public boolean insert(double x, double y, double[] values) {
+        checkValues(values);
+        if (!root.aabb.containsPoint(x, y))
+            return false;
+
+        CountingQuadNode node = root;
+        while (true) {
+            node.count++;
+            add(node.sums, 1, values);
+            if (node.isLeaf()) {
+                if (node.own < leafCapacity || node.aabb.level + 1 >= maxHeight) {
+                    node.own++;
+                    add(node.ownSums, 1, values);
+                    int q = node.quadrant(x, y);
+                    if (q >= 0) {
+                        node.quadrants[q]++;
+                        add(node.quadrantSums, q * this.values, 1, values);
+                    }
+                    return true;
+                }
+                node.subdivide();
+            }
+            CountingQuadNode child = node.child(x, y);
+            if (child == null) {
+                // Rounding left the point in none of the children
+                node.own++;
+                add(node.ownSums, 1, values);
+                return true;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Counts a point less, leaving the sums as they are, see {@link #remove(double, double, double[])}.
+     */
+    public boolean remove(double x, double y) {
+        return remove(x, y, null);
+    }
+
+    /**
+     * Counts a point less, from the deepest node holding it that counted points, and subtracts its values from
+     * the sums. Children that together count fewer points than fit a leaf are merged into their parent.
+     *
+     * @param values The values that came with the point, or null to leave the sums as they are
+     * @return False if no node holding the point counted any points
+     */
+    public boolean remove(double x, double y, double[] values) {
+        if (values != null)
+            checkValues(values);
+        if (!root.aabb.containsPoint(x, y))
+            return false;
+
+        CountingQuadNode counted = null;
+        for (CountingQuadNode node = root; node != null; node = node.isLeaf() ? null : node.child(x, y)) {
+            if (node.own > 0)
+                counted = node;
+        }
+        if (counted == null)
+            return false;
+
+        double[] removed = values == null ? NO_VALUES : values;
+        counted.own--;
+        add(counted.ownSums, -1, removed);
+        int q = counted.isLeaf() ? counted.quadrant(x, y) : -1;
+        if (q >= 0 && counted.quadrants[q] > 0) {
+            counted.quadrants[q]--;
+            add(counted.quadrantSums, q * this.values, -1, removed);
+        }
+        counted.place();
+        for (CountingQuadNode node = counted; node != null; node = (CountingQuadNode) node.parent) {
+            node.count--;
+            add(node.sums, -1, removed);
+            node.merge();
+        }
+        return true;
+    }
+
+    /**
+     * Counts the points in a range. Nodes that are partly in the range count their own points in proportion to
+     * the part of their box that is.
+     */
+    public double count(double x, double y, double width, double height) {
+        return aggregate(x, y, width, height, -1);
+    }
+
+    /**
+     * Sums a value of the points in a range, with nodes partly in the range as for {@link #count}.
+     *
+     * @param value The index of the value
+     */
+    public double sum(int value, double x, double y, double width, double height) {
+        if (value < 0 || value >= values)
+            throw new IllegalArgumentException("No value " + value);
+        return aggregate(x, y, width, height, value);
+    }
+
+    private double aggregate(double x, double y, double width, double height, int value) {
+        AxisAlignedBoundingBox range = new AxisAlignedBoundingBox(new XYPoint(x, y), width, height, 0);
+        double total = 0;
+        ArrayDeque<CountingQuadNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            CountingQuadNode node = stack.pop();
+            if (!node.aabb.intersectsBox(range))
+                continue;
+            if (range.insideThis(node.aabb)) {
+                total += value < 0 ? node.count() : node.sums[value];
+                continue;
+            }
+            double w = node.aabb.getWidth(), h = node.aabb.getHeight();
+            double kept = value < 0 ? node.own : node.ownSums[value];
+            for (int q = 0; q < 4; q++) {
+                double inQuadrant = value < 0 ? node.quadrants[q] : node.quadrantSums[q * values + value];
+                kept -= inQuadrant;
+                total += inQuadrant * overlap(node.aabb.x + (q & 1) * w / 2, node.aabb.y + (q >> 1) * h / 2,
+                        w / 2, h / 2, range);
+            }
+            total += kept * overlap(node.aabb.x, node.aabb.y, w, h, range);
+            if (!node.isLeaf()) {
+                stack.push((CountingQuadNode) node.southEast);
+                stack.push((CountingQuadNode) node.southWest);
+                stack.push((CountingQuadNode) node.northEast);
+                stack.push((CountingQuadNode) node.northWest);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return The part of the area of a box that lies in a range
+     */
+    private static double overlap(double x, double y, double width, double height, AxisAlignedBoundingBox range) {
+        double w = Math.min(x + width, range.x + range.getWidth()) - Math.max(x, range.x);
+        double h = Math.min(y + height, range.y + range.getHeight()) - Math.max(y, range.y);
+        if (w <= 0 || h <= 0)
+            return 0;
+        return Math.min(1, (w / width) * (h / height));
+    }
+
+    /**
+     * Counts the points per cell of a grid over the bounding box of the tree. Nodes larger than a cell spread their
+     * own points evenly over the cells they cover.
+     *
+     * @param depth The grid has 2^depth x 2^depth cells, the size of the nodes at that depth, at most 30
+     * @return The number of points per cell, cell (x, y) at x + 2^depth * y, x along the X coordinate
+     */
+    public double[] density(int depth) {
+        if (depth < 0 || depth > 30)
+            throw new IllegalArgumentException("Invalid depth " + depth);
+        int size = 1 << depth;
+        double[] cells = new double[size * size];
+        ArrayDeque<CountingQuadNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            CountingQuadNode node = stack.pop();
+            int level = node.aabb.level;
+            if (level >= depth) {
+                // The locational code of the cell holding the node, exact as long as the node is
+                long shift = level - depth;
+                long column = level < Long.SIZE - 1 ? node.column >> shift : 0;
+                long row = level < Long.SIZE - 1 ? node.row >> shift : 0;
+                cells[(int) (column + size * row)] += node.count();
+                continue;
+            }
+            if (node.own > 0) {
+                int span = 1 << (depth - level);
+                long kept = node.own;
+                for (int q = 0; q < 4; q++) {
+                    kept -= node.quadrants[q];
+                    spread(cells, size, node.quadrants[q], 2 * node.column + (q & 1), 2 * node.row + (q >> 1),
+                            span / 2);
+                }
+                spread(cells, size, kept, node.column, node.row, span);
+            }
+            if (!node.isLeaf()) {
+                stack.push((CountingQuadNode) node.southEast);
+                stack.push((CountingQuadNode) node.southWest);
+                stack.push((CountingQuadNode) node.northEast);
+                stack.push((CountingQuadNode) node.northWest);
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Spreads points evenly over the span x span cells of a grid covered by the node at a column and row.
+     */
+    private static void spread(double[] cells, int size, long points, long column, long row, int span) {
+        if (points == 0)
+            return;
+        double share = (double) points / span / span;
+        for (long r = row * span; r < (row + 1) * span; r++) {
+            for (long c = column * span; c < (column + 1) * span; c++) {
+                cells[(int) (c + size * r)] += share;
+            }
+        }
+    }
+
+    private static void add(double[] sums, int points, double[] values) {
+        add(sums, 0, points, values);
+    }
+
+    private static void add(double[] sums, int offset, int points, double[] values) {
+        for (int i = 0; i < values.length; i++)
+            sums[offset + i] += points * values[i];
+    }
+
+    private void checkValues(double[] values) {
+        if (values.length != this.values)
+            throw new IllegalArgumentException("Expected " + this.values + " values, got " + values.length);
+    }
+
+    public class CountingQuadNode extends QuadNode<XYPoint> {
+        // Points counted in this node itself: for a leaf all its points, for an inner node those it kept when it
+        // subdivided, as they could not be placed in a quadrant
+        private long own = 0;
+        // Sums of the values of all points in and below this node, and of the own points
+        private final double[] sums;
+        private final double[] ownSums;
+        // Number of points in and below this node
+        private long count = 0;
+        // Own points of a leaf per quadrant of its box, by Loc; the rest of its own points lie anywhere in its box
+        private final long[] quadrants = new long[4];
+        private final double[] quadrantSums;
+
+        private CountingQuadNode(AxisAlignedBoundingBox aabb, CountingQuadNode parent, Loc loc) {
+            super(aabb, parent, loc);
+            sums = values == 0 ? NO_VALUES : new double[values];
+            ownSums = values == 0 ? NO_VALUES : new double[values];
+            quadrantSums = values == 0 ? NO_VALUES : new double[4 * values];
+        }
+
+        /**
+         * @return The number of points in and below this node
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return The sum of a value over the points in and below this node
+         */
+        public double sum(int value) {
+            return sums[value];
+        }
+
+        /**
+         * @return The ordinal of the Loc of the child whose box would hold a point, as the boxes subdivide makes,
+         *         -1 if rounding would leave the point in none of them
+         */
+        private int quadrant(double x, double y) {
+            double w = aabb.getWidth() / 2d, h = aabb.getHeight() / 2d;
+            boolean east = x >= aabb.x + w, south = y >= aabb.y + h;
+            if (east && !(x < aabb.x + w + w) || south && !(y < aabb.y + h + h))
+                return -1;
+            return (east ? 1 : 0) | (south ? 2 : 0);
+        }
+
+        /**
+         * Keeps the own points per quadrant within the own points, after one was removed.
+         */
+        private void place() {
+            long placed = quadrants[0] + quadrants[1] + quadrants[2] + quadrants[3];
+            for (int q = 3; q >= 0 && placed > own; q--) {
+                if (quadrants[q] > 0) {
+                    quadrants[q]--;
+                    placed--;
+                }
+            }
+        }
+
+        /**
+         * @return The child whose box holds a point, null if rounding left the point in none of them
+         */
+        private CountingQuadNode child(double x, double y) {
+            if (northWest.aabb.containsPoint(x, y)) return (CountingQuadNode) northWest;
+            if (northEast.aabb.containsPoint(x, y)) return (CountingQuadNode) northEast;
+            if (southWest.aabb.containsPoint(x, y)) return (CountingQuadNode) southWest;
+            if (southEast.aabb.containsPoint(x, y)) return (CountingQuadNode) southEast;
+            return null;
+        }
+
+        private void subdivide() {
+            // Split as PointRegionQuadNode does
+            double h = aabb.getHeight() / 2d;
+            double w = aabb.getWidth() / 2d;
+            int level = aabb.level + 1;
+            northWest = new CountingQuadNode(new AxisAlignedBoundingBox(aabb, w, h, level), this, Loc.NW);
+            northEast = new CountingQuadNode(new AxisAlignedBoundingBox(new XYPoint(aabb.x + w, aabb.y), w, h, level),
+                    this, Loc.NE);
+            southWest = new CountingQuadNode(new AxisAlignedBoundingBox(new XYPoint(aabb.x, aabb.y + h), w, h, level),
+                    this, Loc.SW);
+            southEast = new CountingQuadNode(
+                    new AxisAlignedBoundingBox(new XYPoint(aabb.x + w, aabb.y + h), w, h, level), this, Loc.SE);
+            height = Math.max(height, level);
+
+            // Hand every child the points counted in its quadrant
+            CountingQuadNode[] children = {(CountingQuadNode) northWest, (CountingQuadNode) northEast,
+                    (CountingQuadNode) southWest, (CountingQuadNode) southEast};
+            for (int q = 0; q < 4; q++) {
+                CountingQuadNode child = children[q];
+                child.own = child.count = quadrants[q];
+                System.arraycopy(quadrantSums, q * values, child.sums, 0, values);
+                System.arraycopy(quadrantSums, q * values, child.ownSums, 0, values);
+                own -= quadrants[q];
+                for (int i = 0; i < values; i++)
+                    ownSums[i] -= quadrantSums[q * values + i];
+                quadrants[q] = 0;
+            }
+            Arrays.fill(quadrantSums, 0);
+        }
+
+        private void merge() {
+            if (isLeaf() || !northWest.isLeaf() || !northEast.isLeaf() || !southWest.isLeaf() || !southEast.isLeaf())
+                return;
+            if (count >= leafCapacity)
+                return;
+            own = count;
+            System.arraycopy(sums, 0, ownSums, 0, sums.length);
+            // The children's points are all known to lie in their quadrant
+            CountingQuadNode[] children = {(CountingQuadNode) northWest, (CountingQuadNode) northEast,
+                    (CountingQuadNode) southWest, (CountingQuadNode) southEast};
+            for (int q = 0; q < 4; q++) {
+                quadrants[q] = children[q].count;
+                System.arraycopy(children[q].sums, 0, quadrantSums, q * values, values);
+            }
+            northWest = null;
+            northEast = null;
+            southWest = null;
+            southEast = null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected boolean insert(XYPoint p) {
+            return CountingQuadTree.this.insert(p.x, p.y);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected boolean remove(XYPoint p) {
+            return CountingQuadTree.this.remove(p.x, p.y);
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * The number of points counted in this node itself, for a leaf all points in it.
+         */
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, own);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return super.toString() + ", count=" + count + ", own=" + own;
+        }
+    }
+}
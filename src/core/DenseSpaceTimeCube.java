@@ -0,0 +1,90 @@
+package core;
+
+/**
+ * Base of the space time cubes that store a primitive per cell in a single flat array. Cells are laid out
+ * x first, then y, then z, so a time slice is one contiguous block and neighbouring x cells are adjacent.
+ */
+public abstract class DenseSpaceTimeCube {
+    protected int xSize, ySize, zSize;
+
+    protected DenseSpaceTimeCube(int xSize, int ySize, int zSize) {
+        if (xSize < 0 || ySize < 0 || zSize < 0 || (long) xSize * ySize * zSize > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Invalid cube size " + xSize + "x" + ySize + "x" + zSize);
+        }
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+    }
+
+    public int xSize() {
+        return xSize;
+    }
+
+    public int ySize() {
+        return ySize;
+    }
+
+    public int zSize() {
+        return zSize;
+    }
+
+    /**
+     * @return The number of cells in a time slice
+     */
+    public int sliceSize() {
+        return xSize * ySize;
+    }
+
+    /**
+     * @return The offset of a cell in the backing array
+     */
+    public int index(int x, int y, int z) {
+        return x + xSize * y + (xSize * ySize) * z;
+    }
+
+    /**
+     * Extends the cube along the time axis. New cells are 0, existing cells keep their values.
+     * @param zSize The new z size, must not be smaller than the current one
+     */
+    public void growZ(int zSize) {
+        if (zSize < this.zSize) {
+            throw new IllegalArgumentException("Can not shrink cube from " + this.zSize + " to " + zSize);
+        }
+        long cells = (long) xSize * ySize * zSize;
+        if (cells > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Cube of " + zSize + " slices does not fit in an array");
+        }
+        if (cells > capacity()) {
+            // Grow the storage geometrically, so extending slice by slice stays cheap
+            long grown = Math.max(cells, capacity() + capacity() / 2L);
+            resize((int) Math.min(grown, Integer.MAX_VALUE - 8));
+        }
+        this.zSize = zSize;
+    }
+
+    /**
+     * Extends the cube along the time axis by adding slices in front of it. Existing cells move up by the
+     * number of slices added, the new cells at the front are 0.
+     * @param slices The number of slices to add
+     */
+    public void prependZ(int slices) {
+        int used = sliceSize() * zSize;
+        growZ(zSize + slices);
+        shift(used, sliceSize() * slices);
+    }
+
+    /**
+     * @return The number of cells the backing array can hold
+     */
+    protected abstract int capacity();
+
+    /**
+     * Replaces the backing array by one of the given length holding the same values.
+     */
+    protected abstract void resize(int cells);
+
+    /**
+     * Moves the first cells of the backing array up by offset and clears the cells in front of them.
+     */
+    protected abstract void shift(int cells, int offset);
+}
@@ -0,0 +1,15 @@
+package core;
+
+/**
+ * Read access to a space time cube holding a double per cell, either dense ({@link DoubleSpaceTimeCube}) or sparse
+ * ({@link SparseDoubleSpaceTimeCube}). Cells are set through the concrete cubes.
+ */
+public interface DoubleCube {
+    int xSize();
+
+    int ySize();
+
+    int zSize();
+
+    double get(int x, int y, int z);
+}
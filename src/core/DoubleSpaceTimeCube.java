@@ -0,0 +1,65 @@
+package core;
+
+import java.util.Arrays;
+
+/**
+ * A space time cube holding a double per cell, backed by a single flat array. New cells are 0.
+ */
+public class DoubleSpaceTimeCube extends DenseSpaceTimeCube implements DoubleCube {
+    private double[] cube;
+
+    /**
+     * Creates a 3 dimensional space time cube
+     * @param xSize The x size
+     * @param ySize The y size
+     * @param zSize The z size (time)
+     */
+    public DoubleSpaceTimeCube(int xSize, int ySize, int zSize) {
+        super(xSize, ySize, zSize);
+        cube = new double[xSize * ySize * zSize];
+    }
+
+    public double get(int x, int y, int z) {
+        return cube[x + xSize * y + (xSize * ySize) * z];
+    }
+
+    public double get(int[] location) {
+        return get(location[0], location[1], location[2]);
+    }
+
+    public void set(int x, int y, int z, double value) {
+        cube[x + xSize * y + (xSize * ySize) * z] = value;
+    }
+
+    public void set(int[] location, double value) {
+        set(location[0], location[1], location[2], value);
+    }
+
+    public void add(int x, int y, int z, double value) {
+        cube[x + xSize * y + (xSize * ySize) * z] += value;
+    }
+
+    /**
+     * Gives direct access to the cells, laid out as described by {@link #index(int, int, int)}. The array
+     * may be longer than the cube, and is replaced when the cube grows.
+     */
+    public double[] array() {
+        return cube;
+    }
+
+    @Override
+    protected int capacity() {
+        return cube.length;
+    }
+
+    @Override
+    protected void resize(int cells) {
+        cube = Arrays.copyOf(cube, cells);
+    }
+
+    @Override
+    protected void shift(int cells, int offset) {
+        System.arraycopy(cube, 0, cube, offset, cells);
+        Arrays.fill(cube, 0, offset, 0);
+    }
+}
@@ -0,0 +1,167 @@
+package core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses CSV fields straight from a byte buffer, so a row never has to be turned into Strings first.
+ * All ranges are given as [from, to) absolute offsets into the buffer; the buffer position is never touched.
+ */
+public final class FieldParser {
+    private static final long[] POW10 = new long[19];
+    private static final double[] DPOW10 = new double[23];
+    private static final String[] SINGLE_CHARS = new String[128];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+        for (int i = 0; i < DPOW10.length; i++) {
+            DPOW10[i] = Double.parseDouble("1e" + i);
+        }
+        for (int i = 0; i < SINGLE_CHARS.length; i++) {
+            SINGLE_CHARS[i] = String.valueOf((char) i);
+        }
+    }
+
+    private FieldParser() { }
+
+    /**
+     * Parses a decimal integer, accepting the same input as {@link Integer#parseInt(String)}.
+     */
+    public static int parseInt(ByteBuffer buf, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+        if (i == to || to - i > 9) {
+            // Empty, or long enough to overflow: let the JDK produce the right answer or exception
+            return Integer.parseInt(ascii(buf, from, to));
+        }
+        int value = 0;
+        for (; i < to; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("For input string: \"" + ascii(buf, from, to) + "\"");
+            }
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a plain decimal number such as "-73.990371704101563". The result is always the correctly rounded
+     * double, identical to {@link Double#parseDouble(String)}. Input outside the plain decimal form (exponents,
+     * more than 18 significant digits, NaN, ...) is handed to the JDK parser.
+     */
+    public static double parseDouble(ByteBuffer buf, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0, fractionDigits = 0;
+        boolean seenDigit = false, seenDot = false;
+        for (; i < to; i++) {
+            byte b = buf.get(i);
+            if (b >= '0' && b <= '9') {
+                seenDigit = true;
+                if (seenDot) fractionDigits++;
+                if (mantissa == 0 && b == '0') continue; // leading zeros are not significant
+                if (++digits > 18) return Double.parseDouble(ascii(buf, from, to));
+                mantissa = mantissa * 10 + (b - '0');
+            } else if (b == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                return Double.parseDouble(ascii(buf, from, to));
+            }
+        }
+        if (!seenDigit || fractionDigits >= POW10.length) {
+            return Double.parseDouble(ascii(buf, from, to));
+        }
+
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (mantissa < (1L << 53) && fractionDigits < DPOW10.length) {
+            // Both operands are exact, so the single division is correctly rounded
+            value = mantissa / DPOW10[fractionDigits];
+        } else {
+            value = divideRounded(mantissa, fractionDigits);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Returns the field as a String; single character fields share a cached instance.
+     */
+    public static String parseString(ByteBuffer buf, int from, int to) {
+        if (to - from == 1 && buf.get(from) >= 0) {
+            return SINGLE_CHARS[buf.get(from)];
+        }
+        return ascii(buf, from, to);
+    }
+
+    /**
+     * Correctly rounded mantissa / 10^k for mantissas too wide to be exact in a double. Starts from the
+     * (at most one ulp off) floating point quotient and nudges it using exact 128 bit comparisons against the
+     * midpoints with its neighbours.
+     */
+    private static double divideRounded(long mantissa, int k) {
+        long p = POW10[k];
+        double r = (double) mantissa / DPOW10[k];
+        for (int i = 0; i < 4; i++) {
+            long bits = Double.doubleToRawLongBits(r);
+            long m = (bits & 0xFFFFFFFFFFFFFL) | (1L << 52);
+            int e = (int) ((bits >>> 52) & 0x7FF) - 1075;
+
+            int c = compare(mantissa, p, 2 * m + 1, e - 1);
+            if (c > 0 || (c == 0 && (m & 1) == 1)) {
+                r = Math.nextUp(r);
+                continue;
+            }
+            c = m == (1L << 52) ? compare(mantissa, p, 4 * m - 1, e - 2) : compare(mantissa, p, 2 * m - 1, e - 1);
+            if (c < 0 || (c == 0 && (m & 1) == 1)) {
+                r = Math.nextDown(r);
+                continue;
+            }
+            break;
+        }
+        return r;
+    }
+
+    /**
+     * Compares n / p with f * 2^g exactly, i.e. n * 2^-g with f * p, for positive n, p and f.
+     */
+    private static int compare(long n, long p, long f, int g) {
+        long rightHi = Math.multiplyHigh(f, p);
+        long rightLo = f * p;
+        int shift = -g;
+        if (shift >= 0) {
+            // Left side is n << shift; f * p always fits in 115 bits
+            if (64 - Long.numberOfLeadingZeros(n) + shift > 127) return 1;
+            long leftHi = shift == 0 ? 0 : shift < 64 ? n >>> (64 - shift) : n << (shift - 64);
+            long leftLo = shift < 64 ? n << shift : 0;
+            int c = Long.compareUnsigned(leftHi, rightHi);
+            return c != 0 ? c : Long.compareUnsigned(leftLo, rightLo);
+        }
+        // Right side is (f * p) << -shift, compared with n < 2^63
+        int t = -shift;
+        if (rightHi != 0 || 64 - Long.numberOfLeadingZeros(rightLo) + t > 63) return -1;
+        return Long.compare(n, rightLo << t);
+    }
+
+    private static String ascii(ByteBuffer buf, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = buf.get(i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,85 @@
+package core;
+
+/**
+ * Computes the Getis-Ord statistic of a run of cells from their neighbourhood sums and weight tables:
+ * gi = (sumWijXj - xbar * sumWij) / (S * deviation).
+ *
+ * This class is the scalar kernel. A kernel built on the incubating Vector API lives in core.VectorGiKernel
+ * under src-vector; it is compiled and run with "--add-modules jdk.incubator.vector" and the src-vector output
+ * on the class path. {@link #best()} uses it when it is available and falls back to this kernel otherwise. Both
+ * kernels give identical results.
+ */
+public class GiKernel {
+    private static final GiKernel SCALAR = new GiKernel();
+    private static final GiKernel BEST = load();
+
+    protected GiKernel() { }
+
+    /**
+     * @return The scalar kernel
+     */
+    public static GiKernel scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * @return The vector kernel if it can be loaded, the scalar kernel otherwise
+     */
+    public static GiKernel best() {
+        return BEST;
+    }
+
+    public String name() {
+        return "scalar";
+    }
+
+    /**
+     * Computes the statistic of a run of cells, usually a slice.
+     * @param sumWijXj The weighted neighbourhood sums of the cells
+     * @param gi Receives the statistic of the cells
+     * @param offset The offset of the first cell in sumWijXj and gi
+     * @param sumWij sumWij of the cells, starting at the first cell; its length is the number of cells
+     * @param deviation The weight part of the denominator of the cells, see {@link Weights.Tables#deviation}
+     * @param xbar The mean of all cells
+     * @param S The standard deviation of all cells
+     * @param range Holds a maximum and a minimum, which are extended with the statistic of the cells
+     */
+    public void compute(int[] sumWijXj, double[] gi, int offset, double[] sumWij, double[] deviation,
+                        double xbar, double S, double[] range) {
+        double max = range[0], min = range[1];
+        for (int i = 0; i < sumWij.length; i++) {
+            double value = (sumWijXj[offset + i] - xbar * sumWij[i]) / (S * deviation[i]);
+            gi[offset + i] = value;
+            max = Math.max(max, value);
+            min = Math.min(min, value);
+        }
+        range[0] = max;
+        range[1] = min;
+    }
+
+    /**
+     * Computes the statistic of a run of cells from weighted neighbourhood sums that are not whole numbers, see
+     * {@link #compute(int[], double[], int, double[], double[], double, double, double[])}.
+     */
+    public void compute(double[] sumWijXj, double[] gi, int offset, double[] sumWij, double[] deviation,
+                        double xbar, double S, double[] range) {
+        double max = range[0], min = range[1];
+        for (int i = 0; i < sumWij.length; i++) {
+            double value = (sumWijXj[offset + i] - xbar * sumWij[i]) / (S * deviation[i]);
+            gi[offset + i] = value;
+            max = Math.max(max, value);
+            min = Math.min(min, value);
+        }
+        range[0] = max;
+        range[1] = min;
+    }
+
+    private static GiKernel load() {
+        try {
+            return (GiKernel) Class.forName("core.VectorGiKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled, or jdk.incubator.vector is not available
+            return SCALAR;
+        }
+    }
+}
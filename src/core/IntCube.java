@@ -0,0 +1,41 @@
+package core;
+
+/**
+ * A space time cube holding an int per cell, either dense ({@link IntSpaceTimeCube}) or sparse
+ * ({@link SparseIntSpaceTimeCube}). Cells that were never set are 0.
+ */
+public interface IntCube {
+    /**
+     * Receives the cells of a cube, see {@link #forEachNonZero(Visitor)}.
+     */
+    interface Visitor {
+        void visit(int x, int y, int z, int value);
+    }
+
+    int xSize();
+
+    int ySize();
+
+    int zSize();
+
+    int get(int x, int y, int z);
+
+    void set(int x, int y, int z, int value);
+
+    void add(int x, int y, int z, int value);
+
+    /**
+     * Extends the cube along the time axis, see {@link DenseSpaceTimeCube#growZ(int)}.
+     */
+    void growZ(int zSize);
+
+    /**
+     * Adds slices in front of the cube, see {@link DenseSpaceTimeCube#prependZ(int)}.
+     */
+    void prependZ(int slices);
+
+    /**
+     * Visits every cell that is not 0. The order of the cells is not specified.
+     */
+    void forEachNonZero(Visitor visitor);
+}
@@ -0,0 +1,89 @@
+package core;
+
+import java.util.Arrays;
+
+/**
+ * A space time cube holding an int per cell, backed by a single flat array. New cells are 0.
+ */
+public class IntSpaceTimeCube extends DenseSpaceTimeCube implements IntCube {
+    private int[] cube;
+
+    /**
+     * Creates a 3 dimensional space time cube
+     * @param xSize The x size
+     * @param ySize The y size
+     * @param zSize The z size (time)
+     */
+    public IntSpaceTimeCube(int xSize, int ySize, int zSize) {
+        super(xSize, ySize, zSize);
+        cube = new int[xSize * ySize * zSize];
+    }
+
+    /**
+     * Creates a cube around existing cells, laid out as described by {@link #index(int, int, int)}.
+     */
+    public IntSpaceTimeCube(int xSize, int ySize, int zSize, int[] cells) {
+        super(xSize, ySize, zSize);
+        if (cells.length < xSize * ySize * zSize) {
+            throw new IllegalArgumentException("Expected " + xSize * ySize * zSize + " cells, got " + cells.length);
+        }
+        cube = cells;
+    }
+
+    public int get(int x, int y, int z) {
+        return cube[x + xSize * y + (xSize * ySize) * z];
+    }
+
+    public int get(int[] location) {
+        return get(location[0], location[1], location[2]);
+    }
+
+    public void set(int x, int y, int z, int value) {
+        cube[x + xSize * y + (xSize * ySize) * z] = value;
+    }
+
+    public void set(int[] location, int value) {
+        set(location[0], location[1], location[2], value);
+    }
+
+    public void add(int x, int y, int z, int value) {
+        cube[x + xSize * y + (xSize * ySize) * z] += value;
+    }
+
+    @Override
+    public void forEachNonZero(Visitor visitor) {
+        for (int z = 0, i = 0; z < zSize; z++) {
+            for (int y = 0; y < ySize; y++) {
+                for (int x = 0; x < xSize; x++, i++) {
+                    if (cube[i] != 0) {
+                        visitor.visit(x, y, z, cube[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives direct access to the cells, laid out as described by {@link #index(int, int, int)}. The array
+     * may be longer than the cube, and is replaced when the cube grows.
+     */
+    public int[] array() {
+        return cube;
+    }
+
+    @Override
+    protected int capacity() {
+        return cube.length;
+    }
+
+    @Override
+    protected void resize(int cells) {
+        cube = Arrays.copyOf(cube, cells);
+    }
+
+    @Override
+    protected void shift(int cells, int offset) {
+        System.arraycopy(cube, 0, cube, offset, cells);
+        Arrays.fill(cube, 0, offset, 0);
+    }
+}
@@ -0,0 +1,146 @@
+package core;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A box shaped neighbourhood in a space time cube: a cell and every cell at most rx, ry and rz cells away from it
+ * along each axis. Near the border of the cube the box is cut off.
+ */
+public final class Neighbourhood {
+    // The 3x3x3 cells around a cell
+    public static final Neighbourhood CUBE_3 = new Neighbourhood(1, 1, 1);
+
+    public final int rx, ry, rz;
+
+    /**
+     * @param rx Radius along the x axis, in cells
+     * @param ry Radius along the y axis, in cells
+     * @param rz Radius along the time axis, in slices
+     */
+    public Neighbourhood(int rx, int ry, int rz) {
+        if (rx < 0 || ry < 0 || rz < 0) {
+            throw new IllegalArgumentException("Invalid neighbourhood radius " + rx + "," + ry + "," + rz);
+        }
+        this.rx = rx;
+        this.ry = ry;
+        this.rz = rz;
+    }
+
+    /**
+     * Parses a neighbourhood given by its size, such as "7x7x3". Sizes must be odd.
+     */
+    public static Neighbourhood parse(String size) {
+        String[] parts = size.split("x");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected a size like 3x3x3, got " + size);
+        }
+        int[] r = new int[3];
+        for (int i = 0; i < 3; i++) {
+            int width = Integer.parseInt(parts[i].trim());
+            if (width < 1 || width % 2 == 0) {
+                throw new IllegalArgumentException("Neighbourhood sizes must be odd, got " + size);
+            }
+            r[i] = width / 2;
+        }
+        return new Neighbourhood(r[0], r[1], r[2]);
+    }
+
+    /**
+     * @return The number of cells in the neighbourhood of a cell away from the border
+     */
+    public int cells() {
+        return (2 * rx + 1) * (2 * ry + 1) * (2 * rz + 1);
+    }
+
+    /**
+     * Computes the sum over the neighbourhood of every cell of a cube. The box sum is separable, so it is done as
+     * a running sum along x, then y, then z; every pass costs the same whatever the radius.
+     * The sums must fit in an int, which holds as long as the cube holds fewer than 2^31 trips.
+     * @return A new cube holding the sums
+     */
+    public IntSpaceTimeCube sum(IntSpaceTimeCube cube) {
+        return sum(cube, null);
+    }
+
+    /**
+     * Computes the sum over the neighbourhood of every cell of a cube, see {@link #sum(IntSpaceTimeCube)}. The x
+     * and y passes are split into z slabs, the z pass into blocks of columns. The sums are exact, so the result
+     * does not depend on the pool.
+     * @param pool The pool to run the passes on, or null to run them in the calling thread
+     */
+    public IntSpaceTimeCube sum(IntSpaceTimeCube cube, ForkJoinPool pool) {
+        int xSize = cube.xSize(), ySize = cube.ySize(), zSize = cube.zSize();
+        int sliceSize = xSize * ySize;
+        int[] in = cube.array(), a = new int[sliceSize * zSize], b = new int[sliceSize * zSize];
+
+        // Runs along x are single cells, along y rows of xSize cells and along z slices of xSize * ySize cells
+        Slabs.run(pool, 0, zSize, 1, (slab, from, to) -> {
+            for (int row = from * ySize; row < to * ySize; row++) {
+                runningSum(in, a, row * xSize, 1, 1, xSize, rx);
+            }
+            for (int z = from; z < to; z++) {
+                runningSum(a, b, z * sliceSize, xSize, xSize, ySize, ry);
+            }
+        });
+        Slabs.run(pool, 0, sliceSize, 1024, (slab, from, to) ->
+                runningSum(b, a, from, to - from, sliceSize, zSize, rz));
+        return new IntSpaceTimeCube(xSize, ySize, zSize, a);
+    }
+
+    /**
+     * Sums every cell of the neighbourhood of every cell one by one. Far slower than {@link #sum}, it serves
+     * as the reference to check it against.
+     */
+    public IntSpaceTimeCube sumBruteForce(IntCube cube) {
+        int xSize = cube.xSize(), ySize = cube.ySize(), zSize = cube.zSize();
+        IntSpaceTimeCube sums = new IntSpaceTimeCube(xSize, ySize, zSize);
+        for (int x = 0; x < xSize; x++) {
+            for (int y = 0; y < ySize; y++) {
+                for (int z = 0; z < zSize; z++) {
+                    int sum = 0;
+                    for (int xp = Math.max(0, x - rx); xp <= Math.min(xSize - 1, x + rx); xp++) {
+                        for (int yp = Math.max(0, y - ry); yp <= Math.min(ySize - 1, y + ry); yp++) {
+                            for (int zp = Math.max(0, z - rz); zp <= Math.min(zSize - 1, z + rz); zp++) {
+                                sum += cube.get(xp, yp, zp);
+                            }
+                        }
+                    }
+                    sums.set(x, y, z, sum);
+                }
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Writes the sum of the window of radius r around every element of a run of blocks. Blocks are summed
+     * element wise, so every window sum costs one addition and one subtraction per element.
+     * @param from Offset of the first block
+     * @param width Number of consecutive cells in a block
+     * @param stride Distance between the starts of consecutive blocks
+     * @param length Number of blocks
+     */
+    private static void runningSum(int[] in, int[] out, int from, int width, int stride, int length, int r) {
+        if (length == 0) {
+            return;
+        }
+        for (int i = from; i < from + width; i++) {
+            int sum = 0;
+            for (int j = 0; j <= Math.min(r, length - 1); j++) {
+                sum += in[i + j * stride];
+            }
+            out[i] = sum;
+        }
+        for (int j = 1; j < length; j++) {
+            int current = from + j * stride, previous = current - stride;
+            int added = j + r < length ? from + (j + r) * stride : -1;
+            int removed = j - r - 1 >= 0 ? from + (j - r - 1) * stride : -1;
+            for (int i = 0; i < width; i++) {
+                int sum = out[previous + i];
+                if (added != -1) sum += in[added + i];
+                if (removed != -1) sum -= in[removed + i];
+                out[current + i] = sum;
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package core;
+
+/**
+ * Payment types as coded in the TLC trip records.
+ */
+public enum PaymentType {
+    CREDIT_CARD(1), CASH(2), NO_CHARGE(3), DISPUTE(4), UNKNOWN(5), VOIDED_TRIP(6);
+
+    private static final PaymentType[] BY_CODE = new PaymentType[7];
+
+    static {
+        for (PaymentType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    public final byte code;
+
+    PaymentType(int code) {
+        this.code = (byte) code;
+    }
+
+    /**
+     * Looks up a payment type by its TLC code.
+     * @param code The code
+     * @return The payment type, {@link #UNKNOWN} for codes that are not defined
+     */
+    public static PaymentType fromCode(int code) {
+        if (code <= 0 || code >= BY_CODE.length) {
+            return UNKNOWN;
+        }
+        return BY_CODE[code];
+    }
+}
@@ -0,0 +1,171 @@
+package core;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tests the Getis-Ord statistic of every cell of a cube for significance with conditional permutations. Every
+ * permutation shuffles the counts of the cube, puts the count of a cell back in its own place and computes the
+ * neighbourhood sum of the cell from the shuffled counts around it. The mean and the deviation of the counts do not
+ * change under a permutation, so the statistic of a cell is at least as extreme exactly when its neighbourhood sum
+ * is.
+ *
+ * A permutation costs a shuffle and a pass of the separable neighbourhood sum over the cube, which is what the
+ * statistic itself costs. Permutations are run in parallel, each with its own random generator split off a seeded
+ * root, so the results only depend on the seed.
+ */
+public final class PermutationTest {
+    private final Weights weights;
+    private final int permutations;
+    private final long seed;
+
+    /**
+     * @param permutations The number of permutations, 999 gives pseudo p-values down to 0.001
+     * @param seed The seed of the random generators
+     */
+    public PermutationTest(Weights weights, int permutations, long seed) {
+        if (permutations < 1) {
+            throw new IllegalArgumentException("At least one permutation is needed, got " + permutations);
+        }
+        this.weights = weights;
+        this.permutations = permutations;
+        this.seed = seed;
+    }
+
+    /**
+     * Counts for every cell how many permutations give a statistic at least as extreme as the observed one, on
+     * the side of the mean the observed statistic lies on.
+     * @param counts The counts of the cells
+     * @param sums The observed neighbourhood sums of the cells, see {@link Weights#sum}
+     * @param tables The weight tables of the cube
+     * @param xbar The mean of the counts
+     * @param pool The pool to run the permutations on, or null to run them in the calling thread
+     */
+    public Result run(IntSpaceTimeCube counts, double[] sums, Weights.Tables tables, double xbar, ForkJoinPool pool) {
+        int xSize = counts.xSize(), ySize = counts.ySize(), zSize = counts.zSize();
+        int sliceSize = xSize * ySize, cells = sliceSize * zSize;
+        int[] observed = counts.array();
+        // The weight of the cell itself, whose own count is kept in place
+        double self = weights.weight(0, 0, 0);
+
+        // Cells whose statistic lies above the mean are hot, the others cold
+        boolean[] hot = new boolean[cells];
+        for (int z = 0; z < zSize; z++) {
+            double[] sumWij = tables.sumWij(z);
+            for (int i = 0; i < sliceSize; i++) {
+                hot[z * sliceSize + i] = sums[z * sliceSize + i] >= xbar * sumWij[i];
+            }
+        }
+
+        // One generator per permutation, so the permutations do not depend on how they are split over threads
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] randoms = new SplittableRandom[permutations];
+        for (int p = 0; p < permutations; p++) {
+            randoms[p] = root.split();
+        }
+
+        int[] extreme = new int[cells];
+        Slabs.run(pool, 0, permutations, 1, (slab, from, to) -> {
+            int[] shuffled = new int[cells];
+            double[] a = new double[cells], b = new double[cells];
+            int[] slabExtreme = new int[cells];
+            for (int p = from; p < to; p++) {
+                // Every permutation starts from the observed counts, so it only depends on its own generator
+                System.arraycopy(observed, 0, shuffled, 0, cells);
+                shuffle(shuffled, randoms[p]);
+                double[] permuted = weights.sum(shuffled, xSize, ySize, zSize, a, b, null);
+                for (int i = 0; i < cells; i++) {
+                    double sum = permuted[i] + self * (observed[i] - shuffled[i]);
+                    if (hot[i] ? sum >= sums[i] : sum <= sums[i]) {
+                        slabExtreme[i]++;
+                    }
+                }
+            }
+            synchronized (extreme) {
+                for (int i = 0; i < cells; i++) {
+                    extreme[i] += slabExtreme[i];
+                }
+            }
+        });
+        return new Result(xSize, ySize, zSize, permutations, extreme, hot);
+    }
+
+    private static void shuffle(int[] cells, SplittableRandom random) {
+        for (int i = cells.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int cell = cells[i];
+            cells[i] = cells[j];
+            cells[j] = cell;
+        }
+    }
+
+    /**
+     * The outcome of the permutations: a pseudo p-value per cell, and which cells are hot or cold spots once the
+     * false discovery rate over all cells is controlled.
+     */
+    public static final class Result {
+        public final int xSize, ySize, zSize;
+        public final int permutations;
+        // Number of permutations at least as extreme as the observed statistic, per cell at x + xSize * (y + ySize * z)
+        private final int[] extreme;
+        private final boolean[] hot;
+
+        private Result(int xSize, int ySize, int zSize, int permutations, int[] extreme, boolean[] hot) {
+            this.xSize = xSize;
+            this.ySize = ySize;
+            this.zSize = zSize;
+            this.permutations = permutations;
+            this.extreme = extreme;
+            this.hot = hot;
+        }
+
+        /**
+         * @return The pseudo p-value (extreme + 1) / (permutations + 1) of a cell
+         */
+        public double p(int x, int y, int z) {
+            return p(extreme[x + xSize * (y + ySize * z)]);
+        }
+
+        private double p(int extreme) {
+            return (extreme + 1.0) / (permutations + 1);
+        }
+
+        /**
+         * Finds the largest p-value that is significant when the false discovery rate over all cells is kept at
+         * the given rate, with the Benjamini-Hochberg procedure. There are only permutations + 1 different p-values,
+         * so the cells are ordered by counting them per p-value rather than sorting them.
+         * @param fdr The false discovery rate, for example 0.05
+         * @return The cutoff, or 0 if no cell is significant
+         */
+        public double cutoff(double fdr) {
+            if (!(fdr > 0 && fdr < 1)) {
+                throw new IllegalArgumentException("Invalid false discovery rate " + fdr);
+            }
+            long[] cellsPer = new long[permutations + 1];
+            for (int e : extreme) {
+                cellsPer[e]++;
+            }
+            double cells = extreme.length, cutoff = 0;
+            long rank = 0;
+            for (int e = 0; e <= permutations; e++) {
+                rank += cellsPer[e];
+                if (cellsPer[e] > 0 && p(e) <= rank / cells * fdr) {
+                    cutoff = p(e);
+                }
+            }
+            return cutoff;
+        }
+
+        /**
+         * @param cutoff The largest significant p-value, see {@link #cutoff}
+         * @return 1 if the cell is a significant hot spot, -1 if it is a significant cold spot, 0 otherwise
+         */
+        public int spot(int x, int y, int z, double cutoff) {
+            int i = x + xSize * (y + ySize * z);
+            if (p(extreme[i]) > cutoff) {
+                return 0;
+            }
+            return hot[i] ? 1 : -1;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A tree of {@link QuadTree.QuadNode}s, whether its nodes keep points or only count them, for code that walks the
+ * nodes rather than querying the points.
+ */
+public interface QuadNodeTree<G extends QuadTree.XYPoint> {
+
+    /**
+     * Get the root node.
+     *
+     * @return Root QuadNode.
+     */
+    QuadTree.QuadNode<G> getRoot();
+
+    /**
+     * Groups the leaves of the tree by their level, in a single traversal. The number of points of a leaf is its
+     * {@link QuadTree.QuadNode#size()}.
+     *
+     * @return The leaves of every level from the root down, each level in Z-order; a level without leaves is an
+     *         empty list
+     */
+    default List<List<QuadTree.QuadNode<G>>> leavesByLevel() {
+        List<List<QuadTree.QuadNode<G>>> levels = new ArrayList<>();
+        ArrayDeque<QuadTree.QuadNode<G>> stack = new ArrayDeque<>();
+        stack.push(getRoot());
+        while (!stack.isEmpty()) {
+            QuadTree.QuadNode<G> node = stack.pop();
+            if (node.isLeaf()) {
+                while (levels.size() <= node.aabb.level)
+                    levels.add(new ArrayList<>());
+                levels.get(node.aabb.level).add(node);
+            } else {
+                // Pushed in reverse, so north west comes off first
+                stack.push(node.southEast);
+                stack.push(node.southWest);
+                stack.push(node.northEast);
+                stack.push(node.northWest);
+            }
+        }
+        return levels;
+    }
+}
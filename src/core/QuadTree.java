@@ -1,11 +1,14 @@
 package core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A quadtree is a tree data structure in which each internal node has exactly four children. Quadtrees
@@ -17,14 +20,13 @@ import java.util.List;
  * @author Justin Wetherell <phishman3579@gmail.com>
  */
 @SuppressWarnings("unchecked")
-public abstract class QuadTree<G extends QuadTree.XYPoint> {
+public abstract class QuadTree<G extends QuadTree.XYPoint> implements QuadNodeTree<G> {
 
     /**
-     * Get the root node.
-     *
-     * @return Root QuadNode.
+     * {@inheritDoc}
      */
-    protected abstract QuadNode<G> getRoot();
+    @Override
+    public abstract QuadNode<G> getRoot();
 
     /**
      * Range query of the quadtree.
@@ -65,12 +67,30 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
      * all internal nodes act as guides towards the keys.
      *
      * This implementation is a PR QuadTree which uses "Buckets" to prevent stalky trees.
+     *
+     * Inserts, removes and range queries may run from many threads at once. Threads go down the tree without locking,
+     * as a node publishes its children all at once, and only lock the leaf they read or change; threads working in
+     * different parts of the tree do not wait on each other. Walks over the nodes themselves, such as toString,
+     * leavesByLevel and the neighbors of a node, and bulk loads, are for a tree that no other thread changes.
+     *
+     * Nothing in this project inserts into a tree from several threads: QuadTreeComputer collects the points of its
+     * workers and bulk loads them with {@link #load}, and QueryServer only runs range queries concurrently. The
+     * concurrent inserts are there for library use. How their throughput scales with cores has not been measured;
+     * on a single core they cost up to about 11% over the unsynchronised tree at small leaf capacities.
      */
     public static class PointRegionQuadTree<P extends QuadTree.XYPoint> extends QuadTree<P> {
 
-        private static final XYPoint XY_POINT = new XYPoint();
-        private static final AxisAlignedBoundingBox RANGE = new AxisAlignedBoundingBox();
-        public static int currentHeight = 0;
+        // Points per slab when computing the Morton codes of a bulk load
+        private static final int MIN_LOAD_SLAB = 1 << 16;
+
+        // max number of children before sub-dividing
+        private final int maxCapacity;
+        // max height of the tree (will over-ride maxCapacity when height==maxHeight)
+        private final int maxHeight;
+        // whether a point already in the tree is refused
+        private final boolean rejectDuplicates;
+        // Deepest level of a node
+        private final AtomicInteger currentHeight = new AtomicInteger();
 
         private PointRegionQuadNode<P> root = null;
 
@@ -114,11 +134,38 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
          *                                                   max capacity defined by leafCapacity)
          */
         public PointRegionQuadTree(double x, double y, double width, double height, int leafCapacity, int maxTreeHeight) {
+            this(x,y,width,height,leafCapacity,maxTreeHeight,true);
+        }
+
+        /**
+         * Create a quadtree who's upper left coordinate is located at x,y and it's bounding box is described
+         * by the height and width.
+         *
+         * @param x Upper left X coordinate
+         * @param y Upper left Y coordinate
+         * @param width Width of the bounding box containing all points
+         * @param height Height of the bounding box containing all points
+         * @param leafCapacity Max capacity of leaf nodes. (Note: All data is stored in leaf nodes)
+         * @param maxTreeHeight Max height of the quadtree. (Note: If this is defined, the tree will ignore the
+         *                                                   max capacity defined by leafCapacity)
+         * @param rejectDuplicates Whether a point that is already in the tree is refused. Finding duplicates costs
+         *                         a small hash per leaf; without it every point is stored, also when it repeats.
+         */
+        public PointRegionQuadTree(double x, double y, double width, double height, int leafCapacity, int maxTreeHeight,
+                                   boolean rejectDuplicates) {
             XYPoint xyPoint = new XYPoint(x,y);
             AxisAlignedBoundingBox aabb = new AxisAlignedBoundingBox(xyPoint,width,height, 0);
-            PointRegionQuadNode.maxCapacity = leafCapacity;
-            PointRegionQuadNode.maxHeight = maxTreeHeight;
-            root = new PointRegionQuadNode<P>(aabb, null);
+            this.maxCapacity = leafCapacity;
+            this.maxHeight = maxTreeHeight;
+            this.rejectDuplicates = rejectDuplicates;
+            root = new PointRegionQuadNode<P>(this, aabb, null, null);
+        }
+
+        /**
+         * @return The deepest level of a node, 0 for a tree that has not subdivided
+         */
+        public int height() {
+            return currentHeight.get();
         }
 
         /**
@@ -134,8 +181,7 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
          */
         @Override
         public boolean insert(double x, double y) {
-            XYPoint xyPoint = new XYPoint(x,y);
-            return root.insert((P)xyPoint);
+            return root.insert(x,y);
         }
 
         /**
@@ -143,9 +189,246 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
          */
         @Override
         public boolean remove(double x, double y) {
-            XY_POINT.set(x,y);
+            return root.remove(x,y);
+        }
+
+        /**
+         * Inserts many points at once, much faster than inserting them one by one. The points are sorted by their
+         * Morton (Z-order) code, in which the points of every node are consecutive: the points of a node split into
+         * four runs, one per child, down to the leaves, which take their run as it is.
+         *
+         * The tree comes out as inserting the points one by one gives, since a node is subdivided exactly when more
+         * points than fit a leaf fall in it. Only the order of the points within a leaf may differ. A tree that
+         * holds points already gets them inserted one by one, from several threads. No other thread may use the tree
+         * while it loads.
+         *
+         * @param points X and Y of the points, point i at 2i and 2i + 1
+         * @param size The number of values in points, twice the number of points
+         * @return The number of points inserted
+         */
+        public int load(double[] points, int size) {
+            int n = size / 2;
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            if (!root.isLeaf() || root.size() > 0) {
+                int[] bounds = Slabs.split(pool, 0, n, MIN_LOAD_SLAB);
+                int[] inserted = new int[bounds.length - 1];
+                Slabs.run(pool, bounds, (slab, from, to) -> {
+                    for (int i = from; i < to; i++) {
+                        if (root.insert(points[2 * i], points[2 * i + 1]))
+                            inserted[slab]++;
+                    }
+                });
+                return Arrays.stream(inserted).sum();
+            }
+
+            // Sort keys of the code followed by the index of the point, the code as deep as fits next to the index
+            int indexBits = Math.max(1, 64 - Long.numberOfLeadingZeros(n - 1));
+            int depth = Math.max(0, Math.min(maxHeight - 1, (63 - indexBits) / 2));
+            long indexMask = (1L << indexBits) - 1;
+            long[] keys = new long[n];
+            byte[] reachOf = new byte[n];
+            AxisAlignedBoundingBox box = root.aabb;
+            // The width and height of the children of a box at every level, halved as subdivide does
+            double[] widths = new double[depth], heights = new double[depth];
+            for (int level = 0; level < depth; level++) {
+                widths[level] = (level == 0 ? box.width : widths[level - 1]) / 2d;
+                heights[level] = (level == 0 ? box.height : heights[level - 1]) / 2d;
+            }
+            // Cells of the grid at the depth of the codes, and how far in cells from the edge of a cell a point must be
+            // to be in the cell for the rounded boxes as well: at most a rounding per level for the box, one for the cell
+            double scaleX = (1L << depth) / box.width, scaleY = (1L << depth) / box.height;
+            double toleranceX = 4 * (depth + 2) * (Math.ulp(Math.abs(box.x) + box.width) * scaleX
+                    + Math.ulp((double) (1L << depth)));
+            double toleranceY = 4 * (depth + 2) * (Math.ulp(Math.abs(box.y) + box.height) * scaleY
+                    + Math.ulp((double) (1L << depth)));
+            Slabs.run(pool, Slabs.split(pool, 0, n, MIN_LOAD_SLAB), (slab, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    double x = points[2 * i], y = points[2 * i + 1];
+                    long code;
+                    if (!box.containsPoint(x,y)) {
+                        code = -1;
+                    } else {
+                        double cellX = (x - box.x) * scaleX, cellY = (y - box.y) * scaleY;
+                        if (nearEdge(cellX, toleranceX) || nearEdge(cellY, toleranceY)) {
+                            code = mortonCode(x, y, box, widths, heights, reachOf, i);
+                        } else {
+                            code = interleave((long) cellY) << 1 | interleave((long) cellX);
+                            reachOf[i] = (byte) depth;
+                        }
+                    }
+                    keys[i] = code < 0 ? -1 : code << indexBits | i;
+                }
+            });
+            Arrays.parallelSort(keys);
+
+            // The points in Z-order; points outside the tree sort first and are left out, as are duplicates
+            Run run = new Run(n);
+            for (long key : keys) {
+                if (key < 0)
+                    continue;
+                long code = key >>> indexBits;
+                int i = (int) (key & indexMask);
+                double x = points[2 * i], y = points[2 * i + 1];
+                // Equal points have equal codes
+                boolean duplicate = false;
+                for (int j = run.size - 1; rejectDuplicates && j >= 0 && run.codes[j] == code; j--) {
+                    if (run.xs[j] == x && run.ys[j] == y) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+                if (!duplicate)
+                    run.add(code, x, y, reachOf[i], depth);
+            }
+
+            return load(root, run, 0, run.size, depth);
+        }
+
+        /**
+         * Distinct points in Z-order, with the deepest level whose box holds them.
+         */
+        private static final class Run {
+            final long[] codes;
+            final double[] xs, ys;
+            final byte[] reach;
+            int size = 0;
+            // Points that fit no box at some level above the depth of the codes, in order
+            int[] strays = new int[16];
+            int strayCount = 0;
+
+            Run(int capacity) {
+                codes = new long[capacity];
+                xs = new double[capacity];
+                ys = new double[capacity];
+                reach = new byte[capacity];
+            }
+
+            void add(long code, double x, double y, byte reach, int depth) {
+                codes[size] = code;
+                xs[size] = x;
+                ys[size] = y;
+                this.reach[size] = reach;
+                if (reach < depth) {
+                    if (strayCount == strays.length)
+                        strays = Arrays.copyOf(strays, 2 * strayCount);
+                    strays[strayCount++] = size;
+                }
+                size++;
+            }
+
+            /**
+             * @return The number of points of [from, to) that are in the box of a node at a level
+             */
+            int count(int from, int to, int level) {
+                int count = to - from;
+                int k = Arrays.binarySearch(strays, 0, strayCount, from);
+                for (k = k < 0 ? -k - 1 : k; k < strayCount && strays[k] < to; k++) {
+                    if (reach[strays[k]] < level)
+                        count--;
+                }
+                return count;
+            }
+        }
+
+        /**
+         * Fills a node with a run of points of the Z-order, subdividing it if they do not fit.
+         *
+         * @return The number of points inserted
+         */
+        private int load(PointRegionQuadNode<P> node, Run run, int from, int to, int depth) {
+            int level = node.aabb.level;
+            int inserted = 0;
+            if (node.height == maxHeight || run.count(from, to, level) <= maxCapacity) {
+                for (int i = from; i < to; i++) {
+                    if (run.reach[i] >= level) {
+                        node.points.add(run.xs[i], run.ys[i]);
+                        inserted++;
+                    }
+                }
+                return inserted;
+            }
+            if (level == depth) {
+                // Deeper than the codes go, which only many points very close together get to
+                for (int i = from; i < to; i++) {
+                    if (run.reach[i] >= level && node.insert(run.xs[i], run.ys[i]))
+                        inserted++;
+                }
+                return inserted;
+            }
+
+            // The quadrant of a point at this level is the next two bits of its code, NW, NE, SW and SE in order
+            int shift = 2 * (depth - level - 1);
+            PointRegionQuadNode<P>[] children = node.subdivide();
+            for (int q = 0; q < 4; q++) {
+                int lo = from, hi = to;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if ((run.codes[mid] >>> shift & 3) <= q)
+                        lo = mid + 1;
+                    else
+                        hi = mid;
+                }
+                inserted += load(children[q], run, from, lo, depth);
+                from = lo;
+            }
+            return inserted;
+        }
+
+        /**
+         * @return Whether a position in cells is within a tolerance of the edge of a cell
+         */
+        private static boolean nearEdge(double cell, double tolerance) {
+            double fraction = cell - Math.floor(cell);
+            return fraction < tolerance || fraction > 1 - tolerance;
+        }
+
+        /**
+         * @return The bits of a number of at most 32 bits spread over the even bits
+         */
+        private static long interleave(long bits) {
+            bits = (bits | bits << 16) & 0x0000FFFF0000FFFFL;
+            bits = (bits | bits << 8) & 0x00FF00FF00FF00FFL;
+            bits = (bits | bits << 4) & 0x0F0F0F0F0F0F0F0FL;
+            bits = (bits | bits << 2) & 0x3333333333333333L;
+            bits = (bits | bits << 1) & 0x5555555555555555L;
+            return bits;
+        }
 
-            return root.remove((P)XY_POINT);
+        /**
+         * The Morton code of a point found by going down the boxes from the root: the quadrant of every level, two
+         * bits each, x in the low bit, as deep as there are widths and heights. The boxes are split with the same
+         * arithmetic as {@link PointRegionQuadNode#subdivide}, so a point on the edge between two boxes goes the
+         * same way as when it is inserted. Away from the edges the code is the cell of the point in the grid at that
+         * depth, which is much faster to find.
+         *
+         * Rounding can leave a point on the far edge of a box in none of its children; inserting it fails once
+         * that box is subdivided. The deepest level whose box holds the point is stored in reach.
+         *
+         * @return The code
+         */
+        private static long mortonCode(double x, double y, AxisAlignedBoundingBox box, double[] widths,
+                                       double[] heights, byte[] reach, int i) {
+            int depth = widths.length;
+            double boxX = box.x, boxY = box.y;
+            long code = 0;
+            int deepest = depth;
+            for (int level = 0; level < depth; level++) {
+                double w = widths[level], h = heights[level];
+                int q = 0;
+                if (x >= boxX + w) {
+                    boxX += w;
+                    q |= 1;
+                }
+                if (y >= boxY + h) {
+                    boxY += h;
+                    q |= 2;
+                }
+                if ((x >= boxX + w || y >= boxY + h) && deepest == depth)
+                    deepest = level;
+                code = code << 2 | q;
+            }
+            reach[i] = (byte) deepest;
+            return code;
         }
 
         /**
@@ -156,26 +439,65 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
             if (root == null)
                 return Collections.EMPTY_LIST;
 
-            XY_POINT.set(x,y);
-            RANGE.set(XY_POINT,width,height);
+            AxisAlignedBoundingBox range = new AxisAlignedBoundingBox(new XYPoint(x,y),width,height, 0);
 
             List<P> pointsInRange = new LinkedList<P>();
-            root.queryRange(RANGE,pointsInRange);
+            root.queryRange(range,pointsInRange);
             return pointsInRange;
         }
 
-        public static class PointRegionQuadNode<XY extends QuadTree.XYPoint> extends QuadNode<XY> {
+        /**
+         * Counts the points per cell of a grid over the bounding box of the tree.
+         *
+         * @param depth The grid has 2^depth x 2^depth cells, the size of the nodes at that depth
+         * @return The number of points per cell, cell (x, y) at x + 2^depth * y, x along the X coordinate
+         */
+        public int[] density(int depth) {
+            int size = 1 << depth;
+            int[] cells = new int[size * size];
+            density(root, cells, size);
+            return cells;
+        }
 
-            // max number of children before sub-dividing
-            protected static int maxCapacity = 0;
-            // max height of the tree (will over-ride maxCapacity when height==maxHeight)
-            protected static int maxHeight = 0;
+        private void density(PointRegionQuadNode<P> node, int[] cells, int size) {
+            AxisAlignedBoundingBox box = root.aabb;
+            PointRegionQuadNode<P>[] children = node.children;
+            if (children == null) {
+                synchronized (node) {
+                    children = node.children;
+                    if (children == null) {
+                        Bucket points = node.points;
+                        for (int i = 0; i < points.size(); i++) {
+                            int x = Math.min(size - 1, (int) ((points.x(i) - box.x) / box.width * size));
+                            int y = Math.min(size - 1, (int) ((points.y(i) - box.y) / box.height * size));
+                            cells[x + size * y]++;
+                        }
+                        return;
+                    }
+                }
+            }
+            for (PointRegionQuadNode<P> child : children)
+                density(child, cells, size);
+        }
 
-            public List<XY> points = new LinkedList<XY>();
-            protected int height = 1;
+        public static class PointRegionQuadNode<XY extends QuadTree.XYPoint> extends QuadNode<XY> {
 
-            protected PointRegionQuadNode(AxisAlignedBoundingBox aabb, PointRegionQuadNode<XY> parent) {
-                super(aabb, parent);
+            protected final PointRegionQuadTree<XY> tree;
+            public final Bucket points;
+            protected int height = 1;
+            // The children NW, NE, SW and SE, null for a leaf. Set at once when they are filled, so a thread that finds
+            // them finds them whole; the child fields of QuadNode follow along for walks over an unchanging tree.
+            private volatile PointRegionQuadNode<XY>[] children = null;
+            // Whether the node was merged into its parent, threads that lock it afterwards start over. Guarded by this.
+            private boolean merged = false;
+
+            protected PointRegionQuadNode(PointRegionQuadTree<XY> tree, AxisAlignedBoundingBox aabb,
+                                          PointRegionQuadNode<XY> parent, Loc loc) {
+                super(aabb, parent, loc);
+                this.tree = tree;
+                points = new Bucket(tree.rejectDuplicates);
+                if (parent != null)
+                    height = parent.height + 1;
             }
 
             /**
@@ -186,22 +508,41 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
              */
             @Override
             protected boolean insert(XY p) {
+                return insert(p.x, p.y);
+            }
+
+            protected boolean insert(double x, double y) {
                 // Ignore objects which do not belong in this quad tree
-                if (!aabb.containsPoint(p) || (isLeaf() && points.contains(p)))
+                if (!aabb.containsPoint(x,y))
                     return false; // object cannot be added
 
-                // If there is space in this quad tree, add the object here
-                if ((height==maxHeight) || (isLeaf() && points.size() < maxCapacity)) {
-                    points.add(p);
-                    return true;
-                }
-
-                // Otherwise, we need to subdivide then add the point to whichever node will accept it
-                if (isLeaf() && height<maxHeight) {
-                    currentHeight = aabb.level + 1 > currentHeight ? aabb.level + 1 : currentHeight;
-                    subdivide();
+                PointRegionQuadNode<XY> node = this;
+                while (true) {
+                    PointRegionQuadNode<XY>[] children = node.children;
+                    if (children == null) {
+                        synchronized (node) {
+                            if (node.merged) {
+                                // Its points went to its parent meanwhile
+                                node = this;
+                                continue;
+                            }
+                            children = node.children;
+                            if (children == null) {
+                                // If there is space in this quad tree, add the object here, unless it is already here
+                                if ((node.height==tree.maxHeight) || node.points.size() < tree.maxCapacity)
+                                    return node.points.add(x,y);
+                                if (node.points.isDuplicate(x,y))
+                                    return false;
+
+                                // Otherwise, we need to subdivide then add the point to whichever node will accept it
+                                children = node.subdivide();
+                            }
+                        }
+                    }
+                    node = child(children, x, y);
+                    if (node == null)
+                        return false; // rounding left the point in none of the children
                 }
-                return insertIntoChildren(p);
             }
 
             /**
@@ -211,134 +552,179 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
              */
             @Override
             protected boolean remove(XY p) {
+                return remove(p.x, p.y);
+            }
+
+            protected boolean remove(double x, double y) {
                 // If not in this AABB, don't do anything
-                if (!aabb.containsPoint(p))
+                if (!aabb.containsPoint(x,y))
                     return false;
 
-                // If in this AABB and in this node
-                if (points.remove(p))
-                    return true;
-
-                // If this node has children
-                if (!isLeaf()) {
-                    // If in this AABB but in a child branch
-                    boolean removed = removeFromChildren(p);
-                    if (!removed)
-                        return false;
-
-                    // Try to merge children
-                    merge();
+                while (true) {
+                    // Find the leaf the point would be in
+                    PointRegionQuadNode<XY> node = this;
+                    PointRegionQuadNode<XY>[] children;
+                    while ((children = node.children) != null) {
+                        node = child(children, x, y);
+                        if (node == null)
+                            return false;
+                    }
+                    synchronized (node) {
+                        // Start over if it was merged or subdivided meanwhile
+                        if (node.merged || node.children != null)
+                            continue;
+                        if (!node.points.remove(x,y))
+                            return false;
+                    }
 
+                    // Try to merge children, up to the first parent that cannot
+                    while (node != this && ((PointRegionQuadNode<XY>) node.parent).merge())
+                        node = (PointRegionQuadNode<XY>) node.parent;
                     return true;
                 }
-
-                return false;
             }
 
             /**
              * {@inheritDoc}
              */
             @Override
-            protected int size() {
+            public int size() {
                 return points.size();
             }
 
-            private void subdivide() {
+            /**
+             * Splits a leaf and moves its points to the children. The caller holds the lock of the leaf.
+             *
+             * @return The children
+             */
+            private PointRegionQuadNode<XY>[] subdivide() {
+                tree.currentHeight.accumulateAndGet(aabb.level + 1, Math::max);
                 double h = aabb.height/2d;
                 double w = aabb.width/2d;
 
                 AxisAlignedBoundingBox aabbNW = new AxisAlignedBoundingBox(aabb,w,h, aabb.level + 1);
-                northWest = new PointRegionQuadNode<XY>(aabbNW, this);
-                ((PointRegionQuadNode<XY>)northWest).height = height+1;
+                PointRegionQuadNode<XY> nw = new PointRegionQuadNode<XY>(tree, aabbNW, this, Loc.NW);
 
                 XYPoint xyNE = new XYPoint(aabb.x+w,aabb.y);
                 AxisAlignedBoundingBox aabbNE = new AxisAlignedBoundingBox(xyNE,w,h, aabb.level + 1);
-                northEast = new PointRegionQuadNode<XY>(aabbNE, this);
-                ((PointRegionQuadNode<XY>)northEast).height = height+1;
+                PointRegionQuadNode<XY> ne = new PointRegionQuadNode<XY>(tree, aabbNE, this, Loc.NE);
 
                 XYPoint xySW = new XYPoint(aabb.x,aabb.y+h);
                 AxisAlignedBoundingBox aabbSW = new AxisAlignedBoundingBox(xySW,w,h, aabb.level + 1);
-                southWest = new PointRegionQuadNode<XY>(aabbSW, this);
-                ((PointRegionQuadNode<XY>)southWest).height = height+1;
+                PointRegionQuadNode<XY> sw = new PointRegionQuadNode<XY>(tree, aabbSW, this, Loc.SW);
 
                 XYPoint xySE = new XYPoint(aabb.x+w,aabb.y+h);
                 AxisAlignedBoundingBox aabbSE = new AxisAlignedBoundingBox(xySE,w,h, aabb.level + 1);
-                southEast = new PointRegionQuadNode<XY>(aabbSE, this);
-                ((PointRegionQuadNode<XY>)southEast).height = height+1;
+                PointRegionQuadNode<XY> se = new PointRegionQuadNode<XY>(tree, aabbSE, this, Loc.SE);
 
                 // points live in leaf nodes, so distribute
-                for (XY p : points)
-                    insertIntoChildren(p);
+                PointRegionQuadNode<XY>[] children = new PointRegionQuadNode[]{nw, ne, sw, se};
+                for (int i = 0; i < points.size(); i++) {
+                    PointRegionQuadNode<XY> child = child(children, points.x(i), points.y(i));
+                    if (child != null)
+                        child.insert(points.x(i), points.y(i));
+                }
+                northWest = nw;
+                northEast = ne;
+                southWest = sw;
+                southEast = se;
+                this.children = children;
                 points.clear();
+                return children;
             }
 
-            private void merge() {
-                // If the children aren't leafs, you cannot merge
-                if (!northWest.isLeaf() || !northEast.isLeaf() || !southWest.isLeaf() || !southEast.isLeaf())
-                    return;
+            /**
+             * Merges the children into this node if they are all leaves that fit in one.
+             *
+             * @return True if merged
+             */
+            private boolean merge() {
+                synchronized (this) {
+                    PointRegionQuadNode<XY>[] children = this.children;
+                    if (merged || children == null)
+                        return false;
+                    return merge(children, 0);
+                }
+            }
+
+            /**
+             * Merges with the lock of this node and the children before the given one. Locks are taken from parent to
+             * child only, so threads merging and inserting never wait on each other in a circle.
+             */
+            private boolean merge(PointRegionQuadNode<XY>[] children, int locked) {
+                if (locked < children.length) {
+                    synchronized (children[locked]) {
+                        return merge(children, locked + 1);
+                    }
+                }
 
-                // Children and leafs, see if you can remove point and merge into this node
-                int nw = northWest.size();
-                int ne = northEast.size();
-                int sw = southWest.size();
-                int se = southEast.size();
-                int total = nw+ne+sw+se;
+                // If the children aren't leafs, you cannot merge
+                int total = 0;
+                for (PointRegionQuadNode<XY> child : children) {
+                    if (child.children != null)
+                        return false;
+                    total += child.size();
+                }
 
                 // If all the children's point can be merged into this node
-                if ((size()+total) < maxCapacity) {
-                    this.points.addAll(((PointRegionQuadNode<XY>)northWest).points);
-                    this.points.addAll(((PointRegionQuadNode<XY>)northEast).points);
-                    this.points.addAll(((PointRegionQuadNode<XY>)southWest).points);
-                    this.points.addAll(((PointRegionQuadNode<XY>)southEast).points);
-
-                    this.northWest = null;
-                    this.northEast = null;
-                    this.southWest = null;
-                    this.southEast = null;
+                if ((size()+total) >= tree.maxCapacity)
+                    return false;
+                // The children keep their points, for range queries that are still reading them
+                for (PointRegionQuadNode<XY> child : children) {
+                    this.points.addAll(child.points);
+                    child.merged = true;
                 }
+                this.children = null;
+                this.northWest = null;
+                this.northEast = null;
+                this.southWest = null;
+                this.southEast = null;
+                return true;
             }
 
-            private boolean insertIntoChildren(XY p) {
-                // A point can only live in one child.
-                if (northWest.insert(p)) return true;
-                if (northEast.insert(p)) return true;
-                if (southWest.insert(p)) return true;
-                if (southEast.insert(p)) return true;
-                return false; // should never happen
-            }
-
-            private boolean removeFromChildren(XY p) {
+            /**
+             * @return The child whose box holds a point, null if rounding left the point in none of them
+             */
+            private static <XY extends QuadTree.XYPoint> PointRegionQuadNode<XY> child(
+                    PointRegionQuadNode<XY>[] children, double x, double y) {
                 // A point can only live in one child.
-                if (northWest.remove(p)) return true;
-                if (northEast.remove(p)) return true;
-                if (southWest.remove(p)) return true;
-                if (southEast.remove(p)) return true;
-                return false; // should never happen
+                for (PointRegionQuadNode<XY> child : children) {
+                    if (child.aabb.containsPoint(x,y))
+                        return child;
+                }
+                return null;
             }
 
             /**
-             * {@inheritDoc}
+             * Find all points which appear within a range.
+             *
+             * @param range Upper-left and width,height of a axis-aligned bounding box.
+             * @param pointsInRange Points inside the bounding box.
              */
-            @Override
             protected void queryRange(AxisAlignedBoundingBox range, List<XY> pointsInRange) {
                 // Automatically abort if the range does not collide with this quad
                 if (!aabb.intersectsBox(range))
                     return;
 
                 // If leaf, check objects at this level
-                if (isLeaf()) {
-                    for (XY xyPoint : points) {
-                        if (range.containsPoint(xyPoint))
-                            pointsInRange.add(xyPoint);
+                PointRegionQuadNode<XY>[] children = this.children;
+                if (children == null) {
+                    synchronized (this) {
+                        children = this.children;
+                        if (children == null) {
+                            for (int i = 0; i < points.size(); i++) {
+                                double x = points.x(i), y = points.y(i);
+                                if (range.containsPoint(x,y))
+                                    pointsInRange.add((XY) new XYPoint(x,y));
+                            }
+                            return;
+                        }
                     }
-                    return;
                 }
 
                 // Otherwise, add the points from the children
-                northWest.queryRange(range,pointsInRange);
-                northEast.queryRange(range,pointsInRange);
-                southWest.queryRange(range,pointsInRange);
-                southEast.queryRange(range,pointsInRange);
+                for (PointRegionQuadNode<XY> child : children)
+                    child.queryRange(range,pointsInRange);
             }
 
             /**
@@ -349,8 +735,8 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
                 StringBuilder builder = new StringBuilder();
                 builder.append(super.toString()).append(", ");
                 builder.append("[");
-                for (XYPoint p : points) {
-                    builder.append(p).append(", ");
+                for (int i = 0; i < points.size(); i++) {
+                    builder.append(new XYPoint(points.x(i), points.y(i))).append(", ");
                 }
                 builder.append("]");
                 return builder.toString();
@@ -362,6 +748,7 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
 
         public final AxisAlignedBoundingBox aabb;
 
+        // In Z-order: east in the low bit, south in the high bit
         enum Loc {
             NW, NE, SW, SE
         };
@@ -375,10 +762,19 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
         public QuadNode<G> southWest = null;
         public QuadNode<G> southEast = null;
         protected QuadNode<G> parent = null;
-
-        protected QuadNode(AxisAlignedBoundingBox aabb, QuadNode<G> parent) {
+        // Which child of its parent this node is, null for the root
+        protected final Loc loc;
+        // Locational code: the column and row of this node among the 2^level x 2^level nodes of its level, growing
+        // east and south. Exact down to level 62, deeper nodes only keep the low bits.
+        public final long column;
+        public final long row;
+
+        protected QuadNode(AxisAlignedBoundingBox aabb, QuadNode<G> parent, Loc loc) {
             this.aabb = aabb;
             this.parent = parent;
+            this.loc = loc;
+            column = parent == null ? 0 : parent.column << 1 | (loc.ordinal() & 1);
+            row = parent == null ? 0 : parent.row << 1 | (loc.ordinal() >> 1);
         }
 
         /**
@@ -402,15 +798,7 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
          *
          * @return Number of GeometricObjects this node contains.
          */
-        protected abstract int size();
-
-        /**
-         * Find all objects which appear within a range.
-         *
-         * @param range Upper-left and width,height of a axis-aligned bounding box.
-         * @param geometricObjectsInRange Geometric objects inside the bounding box.
-         */
-        protected abstract void queryRange(AxisAlignedBoundingBox range, List<G> geometricObjectsInRange);
+        public abstract int size();
 
         /**
          * Is current node a leaf node.
@@ -425,11 +813,11 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
          * @return The north neighboring node if it exists, null otherwise
          */
         public QuadNode<G> northNeighbor() {
-            if(parent == null) {
+            if(parent == null || onEdge(row, 0)) {
                 return null;
             }
 
-            Loc thisLoc = location();
+            Loc thisLoc = loc;
 
             QuadNode<G> pi = parent;
 
@@ -453,11 +841,11 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
         }
 
         public QuadNode<G> eastNeighbor() {
-            if(parent == null) {
+            if(parent == null || onEdge(column, (1L << aabb.level) - 1)) {
                 return null;
             }
 
-            Loc thisLoc = location();
+            Loc thisLoc = loc;
 
             QuadNode<G> pi = parent;
 
@@ -481,11 +869,11 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
         }
 
         public QuadNode<G> southNeighbor() {
-            if(parent == null) {
+            if(parent == null || onEdge(row, (1L << aabb.level) - 1)) {
                 return null;
             }
 
-            Loc thisLoc = location();
+            Loc thisLoc = loc;
 
             QuadNode<G> pi = parent;
 
@@ -509,11 +897,11 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
         }
 
         public QuadNode<G> westNeighbor() {
-            if(parent == null) {
+            if(parent == null || onEdge(column, 0)) {
                 return null;
             }
 
-            Loc thisLoc = location();
+            Loc thisLoc = loc;
 
             QuadNode<G> pi = parent;
 
@@ -536,18 +924,12 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
             return null;
         }
 
-
-        private Loc location() {
-            if (this.equals(parent.northEast)) {
-                return Loc.NE;
-            } else if (this.equals(parent.northWest)) {
-                return Loc.NW;
-            } else if (this.equals(parent.southEast)) {
-                return Loc.SE;
-            } else if (this.equals(parent.southWest)) {
-                return Loc.SW;
-            }
-            return null;
+        /**
+         * Whether the column or row of this node is the first or last of its level, so that there is no neighbor
+         * beyond it. Nodes too deep for an exact code are never on the edge, their neighbors are searched for.
+         */
+        private boolean onEdge(long position, long edge) {
+            return aabb.level < Long.SIZE - 1 && position == edge;
         }
 
         /**
@@ -722,10 +1104,14 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
         }
 
         public boolean containsPoint(XYPoint p) {
-            if (p.x>=maxX) return false;
-            if (p.x<minX) return false;
-            if (p.y>=maxY) return false;
-            if (p.y<minY) return false;
+            return containsPoint(p.x, p.y);
+        }
+
+        public boolean containsPoint(double x, double y) {
+            if (x>=maxX) return false;
+            if (x<minX) return false;
+            if (y>=maxY) return false;
+            if (y<minY) return false;
             return true;
         }
 
@@ -837,6 +1223,129 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
         }
     }
 
+    /**
+     * The points of a node as x, y pairs in a growable array, rather than a list of boxed points. When duplicates are
+     * refused, a small open addressing hash of the points finds them without scanning the node.
+     */
+    public static final class Bucket {
+        private static final double[] NO_COORDS = new double[0];
+
+        // x and y of point i at 2i and 2i + 1
+        private double[] coords = NO_COORDS;
+        private int size = 0;
+        // Index + 1 of the points by hash of their coordinates, 0 for a free slot; null if duplicates are allowed
+        private int[] table;
+        private final boolean rejectDuplicates;
+
+        Bucket(boolean rejectDuplicates) {
+            this.rejectDuplicates = rejectDuplicates;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public double x(int i) {
+            return coords[2 * i];
+        }
+
+        public double y(int i) {
+            return coords[2 * i + 1];
+        }
+
+        /**
+         * Adds a point.
+         * @return False if duplicates are refused and the point is in the bucket already
+         */
+        boolean add(double x, double y) {
+            if (isDuplicate(x, y))
+                return false;
+            if (2 * size == coords.length)
+                coords = Arrays.copyOf(coords, Math.max(8, 2 * coords.length));
+            coords[2 * size] = x;
+            coords[2 * size + 1] = y;
+            size++;
+            if (rejectDuplicates) {
+                if (table == null || 2 * size > table.length)
+                    rehash();
+                else
+                    place(size - 1);
+            }
+            return true;
+        }
+
+        void addAll(Bucket b) {
+            for (int i = 0; i < b.size; i++)
+                add(b.x(i), b.y(i));
+        }
+
+        /**
+         * @return True if duplicates are refused and the point is in the bucket
+         */
+        boolean isDuplicate(double x, double y) {
+            return rejectDuplicates && indexOf(x, y) >= 0;
+        }
+
+        boolean remove(double x, double y) {
+            int i = indexOf(x, y);
+            if (i < 0)
+                return false;
+            size--;
+            coords[2 * i] = coords[2 * size];
+            coords[2 * i + 1] = coords[2 * size + 1];
+            if (rejectDuplicates)
+                rehash();
+            return true;
+        }
+
+        /**
+         * Removes all points and releases their storage.
+         */
+        void clear() {
+            coords = NO_COORDS;
+            size = 0;
+            table = null;
+        }
+
+        private int indexOf(double x, double y) {
+            if (table == null) {
+                for (int i = 0; i < size; i++)
+                    if (coords[2 * i] == x && coords[2 * i + 1] == y)
+                        return i;
+                return -1;
+            }
+            int mask = table.length - 1;
+            for (int slot = hash(x, y) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int i = table[slot] - 1;
+                if (coords[2 * i] == x && coords[2 * i + 1] == y)
+                    return i;
+            }
+            return -1;
+        }
+
+        private void place(int i) {
+            int mask = table.length - 1;
+            int slot = hash(x(i), y(i)) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = i + 1;
+        }
+
+        private void rehash() {
+            // At most half full
+            table = new int[Math.max(16, Integer.highestOneBit(Math.max(1, size)) * 4)];
+            for (int i = 0; i < size; i++)
+                place(i);
+        }
+
+        private static int hash(double x, double y) {
+            // Adding 0 turns -0 into 0, which compares equal
+            long bits = Double.doubleToLongBits(x + 0.0) * 31 + Double.doubleToLongBits(y + 0.0);
+            int h = (int) (bits ^ (bits >>> 32)) * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
     private static final Comparator<XYPoint> X_COMPARATOR = new Comparator<XYPoint>() {
 
         /**
@@ -869,7 +1378,7 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
 
     protected static class TreePrinter {
 
-        public static <T extends XYPoint> String getString(QuadTree<T> tree) {
+        public static <T extends XYPoint> String getString(QuadNodeTree<T> tree) {
             if (tree.getRoot() == null) return "Tree has no nodes.";
             return getString(tree.getRoot(), "", true);
         }
@@ -899,7 +1408,7 @@ public abstract class QuadTree<G extends QuadTree.XYPoint> {
         }
 
 
-        public static <T extends XYPoint> String getJson(QuadTree<T> tree) {
+        public static <T extends XYPoint> String getJson(QuadNodeTree<T> tree) {
             if (tree.getRoot() == null) return "Tree has no nodes.";
             return "[" + getJson(tree.getRoot(), true) + "]";
         }
@@ -0,0 +1,92 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a range, such as the slices of a cube, into consecutive slabs and runs a task per slab on a
+ * {@link ForkJoinPool}. Tasks that produce a result write it to the slot of their slab, so results can be
+ * combined in slab order afterwards, independent of the order the tasks ran in.
+ */
+public final class Slabs {
+    // More slabs than threads, so a slow slab does not hold up the other threads
+    private static final int SLABS_PER_THREAD = 4;
+
+    public interface Task {
+        /**
+         * @param slab The number of the slab
+         * @param from The start of the slab
+         * @param to The end of the slab (exclusive)
+         */
+        void run(int slab, int from, int to);
+    }
+
+    private Slabs() { }
+
+    /**
+     * Splits a range in roughly equal slabs of at least minSize.
+     * @param pool The pool the slabs will run on, or null to run them in the calling thread
+     * @return The bounds of the slabs: slab i covers [bounds[i], bounds[i + 1])
+     */
+    public static int[] split(ForkJoinPool pool, int from, int to, int minSize) {
+        int threads = pool == null ? 1 : pool.getParallelism();
+        int length = Math.max(0, to - from);
+        int slabs = Math.max(1, Math.min(threads * SLABS_PER_THREAD, length / Math.max(1, minSize)));
+        if (threads == 1) {
+            slabs = 1;
+        }
+        int[] bounds = new int[slabs + 1];
+        for (int i = 0; i <= slabs; i++) {
+            bounds[i] = from + (int) ((long) length * i / slabs);
+        }
+        return bounds;
+    }
+
+    /**
+     * Runs the task for every slab and waits for all of them. An exception thrown by a task is rethrown.
+     * @param pool The pool to run on, or null to run every slab in the calling thread
+     * @param bounds The slabs, see {@link #split}
+     */
+    public static void run(ForkJoinPool pool, int[] bounds, Task task) {
+        int slabs = bounds.length - 1;
+        if (pool == null || slabs == 1) {
+            for (int i = 0; i < slabs; i++) {
+                task.run(i, bounds[i], bounds[i + 1]);
+            }
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(slabs);
+        for (int i = 0; i < slabs; i++) {
+            int slab = i;
+            tasks.add(() -> {
+                task.run(slab, bounds[slab], bounds[slab + 1]);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for slabs", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Splits a range and runs the task for every slab, see {@link #split} and {@link #run}.
+     */
+    public static void run(ForkJoinPool pool, int from, int to, int minSize, Task task) {
+        run(pool, split(pool, from, to, minSize), task);
+    }
+}
@@ -0,0 +1,73 @@
+package core;
+
+import java.util.Arrays;
+
+/**
+ * A sparse space time cube holding a double per cell, see {@link SparseSpaceTimeCube}.
+ */
+public class SparseDoubleSpaceTimeCube extends SparseSpaceTimeCube implements DoubleCube {
+    private final double defaultValue;
+    private double[][] bricks = new double[16][];
+
+    /**
+     * Creates a 3 dimensional space time cube whose cells are initially 0
+     * @param xSize The x size
+     * @param ySize The y size
+     * @param zSize The z size (time)
+     */
+    public SparseDoubleSpaceTimeCube(int xSize, int ySize, int zSize) {
+        this(xSize, ySize, zSize, 0);
+    }
+
+    /**
+     * Creates a 3 dimensional space time cube
+     * @param defaultValue The value of cells that were never set
+     */
+    public SparseDoubleSpaceTimeCube(int xSize, int ySize, int zSize, double defaultValue) {
+        super(xSize, ySize, zSize);
+        this.defaultValue = defaultValue;
+    }
+
+    public double get(int x, int y, int z) {
+        int brick = brick(x, y, z, false);
+        return brick == -1 ? defaultValue : bricks[brick][offset(x, y, z)];
+    }
+
+    public void set(int x, int y, int z, double value) {
+        int brick = brick(x, y, z, value != defaultValue);
+        if (brick != -1) {
+            bricks[brick][offset(x, y, z)] = value;
+        }
+    }
+
+    public void add(int x, int y, int z, double value) {
+        int brick = brick(x, y, z, true);
+        bricks[brick][offset(x, y, z)] += value;
+    }
+
+    /**
+     * Receives the cells of a cube, see {@link #forEachSet(Visitor)}.
+     */
+    public interface Visitor {
+        void visit(int x, int y, int z, double value);
+    }
+
+    /**
+     * Visits every cell of the allocated bricks, brick by brick. Cells outside those bricks all have the
+     * default value.
+     */
+    public void forEachSet(Visitor visitor) {
+        forEachCell((brick, offset, x, y, z) -> visitor.visit(x, y, z, bricks[brick][offset]));
+    }
+
+    @Override
+    protected void allocate(int brick) {
+        if (brick == bricks.length) {
+            bricks = Arrays.copyOf(bricks, brick * 2);
+        }
+        bricks[brick] = new double[BRICK_CELLS];
+        if (defaultValue != 0) {
+            Arrays.fill(bricks[brick], defaultValue);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package core;
+
+import java.util.Arrays;
+
+/**
+ * A sparse space time cube holding a int per cell, see {@link SparseSpaceTimeCube}.
+ */
+public class SparseIntSpaceTimeCube extends SparseSpaceTimeCube implements IntCube {
+    private final int defaultValue;
+    private int[][] bricks = new int[16][];
+
+    /**
+     * Creates a 3 dimensional space time cube whose cells are initially 0
+     * @param xSize The x size
+     * @param ySize The y size
+     * @param zSize The z size (time)
+     */
+    public SparseIntSpaceTimeCube(int xSize, int ySize, int zSize) {
+        this(xSize, ySize, zSize, 0);
+    }
+
+    /**
+     * Creates a 3 dimensional space time cube
+     * @param defaultValue The value of cells that were never set
+     */
+    public SparseIntSpaceTimeCube(int xSize, int ySize, int zSize, int defaultValue) {
+        super(xSize, ySize, zSize);
+        this.defaultValue = defaultValue;
+    }
+
+    public int get(int x, int y, int z) {
+        int brick = brick(x, y, z, false);
+        return brick == -1 ? defaultValue : bricks[brick][offset(x, y, z)];
+    }
+
+    public void set(int x, int y, int z, int value) {
+        int brick = brick(x, y, z, value != defaultValue);
+        if (brick != -1) {
+            bricks[brick][offset(x, y, z)] = value;
+        }
+    }
+
+    public void add(int x, int y, int z, int value) {
+        int brick = brick(x, y, z, true);
+        bricks[brick][offset(x, y, z)] += value;
+    }
+
+    /**
+     * Visits every cell that is not 0, brick by brick.
+     */
+    @Override
+    public void forEachNonZero(Visitor visitor) {
+        forEachCell((brick, offset, x, y, z) -> {
+            int value = bricks[brick][offset];
+            if (value != 0) {
+                visitor.visit(x, y, z, value);
+            }
+        });
+    }
+
+    @Override
+    protected void allocate(int brick) {
+        if (brick == bricks.length) {
+            bricks = Arrays.copyOf(bricks, brick * 2);
+        }
+        bricks[brick] = new int[BRICK_CELLS];
+        if (defaultValue != 0) {
+            Arrays.fill(bricks[brick], defaultValue);
+        }
+    }
+}
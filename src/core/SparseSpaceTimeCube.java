@@ -0,0 +1,196 @@
+package core;
+
+import java.util.Arrays;
+
+/**
+ * Base of the space time cubes that only store the parts of the cube that hold data. The cube is divided into
+ * bricks of {@link #BRICK}^3 cells; a brick is allocated the first time one of its cells is set, and found
+ * through an open addressing hash map from brick coordinates to brick number. Cells of bricks that were never
+ * allocated have the default value of the cube.
+ *
+ * Adding slices in front of the cube only moves the origin of the time axis, no cells are moved.
+ */
+public abstract class SparseSpaceTimeCube {
+    // Bricks are BRICK cells wide in every dimension
+    static final int BRICK_BITS = 2;
+    public static final int BRICK = 1 << BRICK_BITS;
+    static final int BRICK_CELLS = BRICK * BRICK * BRICK;
+    private static final int MASK = BRICK - 1;
+    // Brick coordinates are stored in 21 bits each; z is biased so slices prepended later stay positive
+    private static final int COORDINATE_BITS = 21;
+    private static final int Z_BIAS = 1 << (COORDINATE_BITS - 1);
+
+    protected int xSize, ySize, zSize;
+    // Number of slices added in front of the cube; stored z = z - zOrigin
+    private int zOrigin = 0;
+
+    // Hash map from brick key to brick number + 1, 0 marks an empty slot
+    private long[] keys = new long[64];
+    private int[] values = new int[64];
+    // Brick keys by brick number
+    private long[] brickKeys = new long[16];
+    private int bricks = 0;
+
+    // Last brick written to, neighbouring cells usually share it. Reads do not use it, so a cube that is no longer
+    // written to may be read from many threads at once
+    private long lastKey = -1;
+    private int lastBrick = -1;
+
+    protected SparseSpaceTimeCube(int xSize, int ySize, int zSize) {
+        if (xSize < 0 || ySize < 0 || zSize < 0 || xSize >> BRICK_BITS >= 1 << COORDINATE_BITS
+                || ySize >> BRICK_BITS >= 1 << COORDINATE_BITS) {
+            throw new IllegalArgumentException("Invalid cube size " + xSize + "x" + ySize + "x" + zSize);
+        }
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+    }
+
+    public int xSize() {
+        return xSize;
+    }
+
+    public int ySize() {
+        return ySize;
+    }
+
+    public int zSize() {
+        return zSize;
+    }
+
+    /**
+     * @return The number of bricks allocated, each holding {@link #BRICK}^3 cells
+     */
+    public int bricks() {
+        return bricks;
+    }
+
+    /**
+     * Extends the cube along the time axis. New cells have the default value.
+     * @param zSize The new z size, must not be smaller than the current one
+     */
+    public void growZ(int zSize) {
+        if (zSize < this.zSize) {
+            throw new IllegalArgumentException("Can not shrink cube from " + this.zSize + " to " + zSize);
+        }
+        this.zSize = zSize;
+    }
+
+    /**
+     * Extends the cube along the time axis by adding slices in front of it. Existing cells move up by the
+     * number of slices added, the new cells at the front have the default value.
+     * @param slices The number of slices to add
+     */
+    public void prependZ(int slices) {
+        growZ(zSize + slices);
+        zOrigin += slices;
+    }
+
+    /**
+     * Finds the brick holding a cell. Only a lookup that may create the brick changes the cube.
+     * @param create Whether to allocate the brick if it does not exist yet
+     * @return The brick number, or -1 if the brick does not exist
+     */
+    protected int brick(int x, int y, int z, boolean create) {
+        if (x < 0 || x >= xSize || y < 0 || y >= ySize || z < 0 || z >= zSize) {
+            throw new IndexOutOfBoundsException("Cell " + x + "," + y + "," + z + " outside of cube");
+        }
+        long key = key(x, y, z);
+        if (create && key == lastKey) {
+            return lastBrick;
+        }
+
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                if (!create) {
+                    return values[slot] - 1;
+                }
+                lastKey = key;
+                lastBrick = values[slot] - 1;
+                return lastBrick;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!create) {
+            return -1;
+        }
+
+        if (bricks == brickKeys.length) {
+            brickKeys = Arrays.copyOf(brickKeys, bricks * 2);
+        }
+        brickKeys[bricks] = key;
+        allocate(bricks);
+        keys[slot] = key;
+        values[slot] = ++bricks;
+        if (bricks * 2 > keys.length) {
+            rehash();
+        }
+        lastKey = key;
+        lastBrick = bricks - 1;
+        return lastBrick;
+    }
+
+    /**
+     * @return The offset of a cell within its brick
+     */
+    protected int offset(int x, int y, int z) {
+        return (x & MASK) | (y & MASK) << BRICK_BITS | ((z - zOrigin) & MASK) << (2 * BRICK_BITS);
+    }
+
+    /**
+     * Visits the cells of every allocated brick that lie inside the cube.
+     */
+    protected void forEachCell(BrickCellVisitor visitor) {
+        for (int b = 0; b < bricks; b++) {
+            long key = brickKeys[b];
+            int x0 = (int) (key >>> (2 * COORDINATE_BITS)) << BRICK_BITS;
+            int y0 = (int) (key >>> COORDINATE_BITS & ((1 << COORDINATE_BITS) - 1)) << BRICK_BITS;
+            int z0 = ((int) (key & ((1 << COORDINATE_BITS) - 1)) - Z_BIAS << BRICK_BITS) + zOrigin;
+            for (int i = 0; i < BRICK_CELLS; i++) {
+                int x = x0 + (i & MASK), y = y0 + (i >> BRICK_BITS & MASK), z = z0 + (i >> 2 * BRICK_BITS);
+                if (x < xSize && y < ySize && z >= 0 && z < zSize) {
+                    visitor.visit(b, i, x, y, z);
+                }
+            }
+        }
+    }
+
+    protected interface BrickCellVisitor {
+        void visit(int brick, int offset, int x, int y, int z);
+    }
+
+    /**
+     * Creates the storage of a new brick, filled with the default value.
+     */
+    protected abstract void allocate(int brick);
+
+    private long key(int x, int y, int z) {
+        long bz = Math.floorDiv(z - zOrigin, BRICK) + Z_BIAS;
+        return (long) (x >> BRICK_BITS) << (2 * COORDINATE_BITS) | (long) (y >> BRICK_BITS) << COORDINATE_BITS | bz;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+/**
+ * Decodes timestamps in the fixed "yyyy-MM-dd HH:mm:ss" layout of the TLC data into milliseconds since the
+ * epoch. Works directly on character and byte ranges, allocates nothing and keeps no mutable state, so a
+ * single instance can be shared by any number of threads.
+ *
+ * Local times are resolved the same way {@link java.text.SimpleDateFormat} does, including times that fall in
+ * a daylight saving gap or overlap.
+ */
+public final class TimestampParser {
+    // Length of "yyyy-MM-dd HH:mm:ss"
+    public static final int LENGTH = 19;
+
+    /**
+     * Parser for timestamps in the default time zone at the time this class is loaded.
+     */
+    public static final TimestampParser LOCAL = new TimestampParser(TimeZone.getDefault());
+
+    private final TimeZone zone;
+    private final int rawOffset;
+
+    /**
+     * @param zone The time zone the timestamps are in
+     */
+    public TimestampParser(TimeZone zone) {
+        // TimeZone is mutable, keep a private copy
+        this.zone = (TimeZone) zone.clone();
+        this.rawOffset = zone.getRawOffset();
+    }
+
+    public long parse(CharSequence s) {
+        return parse(s, 0, s.length());
+    }
+
+    public long parse(CharSequence s, int from, int to) {
+        if (to - from != LENGTH || s.charAt(from + 4) != '-' || s.charAt(from + 7) != '-'
+                || s.charAt(from + 10) != ' ' || s.charAt(from + 13) != ':' || s.charAt(from + 16) != ':') {
+            throw invalid(s.subSequence(from, to));
+        }
+        return toEpochMillis(digits(s, from, 4), digits(s, from + 5, 2), digits(s, from + 8, 2),
+                digits(s, from + 11, 2), digits(s, from + 14, 2), digits(s, from + 17, 2));
+    }
+
+    public long parse(byte[] b, int from, int to) {
+        if (to - from != LENGTH || b[from + 4] != '-' || b[from + 7] != '-' || b[from + 10] != ' '
+                || b[from + 13] != ':' || b[from + 16] != ':') {
+            throw invalid(new String(b, from, to - from, StandardCharsets.US_ASCII));
+        }
+        return toEpochMillis(digits(b, from, 4), digits(b, from + 5, 2), digits(b, from + 8, 2),
+                digits(b, from + 11, 2), digits(b, from + 14, 2), digits(b, from + 17, 2));
+    }
+
+    /**
+     * Parses a timestamp from a byte buffer, without touching the buffer position.
+     * @param buf The buffer
+     * @param from Absolute offset of the first byte
+     * @param to Absolute offset just past the last byte
+     */
+    public long parse(ByteBuffer buf, int from, int to) {
+        if (to - from != LENGTH || buf.get(from + 4) != '-' || buf.get(from + 7) != '-'
+                || buf.get(from + 10) != ' ' || buf.get(from + 13) != ':' || buf.get(from + 16) != ':') {
+            StringBuilder s = new StringBuilder(to - from);
+            for (int i = from; i < to; i++) {
+                s.append((char) buf.get(i));
+            }
+            throw invalid(s);
+        }
+        return toEpochMillis(digits(buf, from, 4), digits(buf, from + 5, 2), digits(buf, from + 8, 2),
+                digits(buf, from + 11, 2), digits(buf, from + 14, 2), digits(buf, from + 17, 2));
+    }
+
+    private long toEpochMillis(int year, int month, int day, int hour, int minute, int second) {
+        long local = (daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second) * 1000L;
+        // Two steps, so wall times in a transition resolve like GregorianCalendar does
+        return local - zone.getOffset(local - zone.getOffset(local - rawOffset));
+    }
+
+    /**
+     * Days since 1970-01-01 of a proleptic Gregorian date.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yoe = year - era * 400;
+        long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static int digits(CharSequence s, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            value = value * 10 + digit(s.charAt(i), i);
+        }
+        return value;
+    }
+
+    private static int digits(byte[] b, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            value = value * 10 + digit(b[i], i);
+        }
+        return value;
+    }
+
+    private static int digits(ByteBuffer buf, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            value = value * 10 + digit(buf.get(i), i);
+        }
+        return value;
+    }
+
+    private static int digit(int c, int offset) {
+        int d = c - '0';
+        if (d < 0 || d > 9) {
+            throw new NumberFormatException("Invalid digit in date at offset " + offset);
+        }
+        return d;
+    }
+
+    private static NumberFormatException invalid(CharSequence s) {
+        return new NumberFormatException("Unparseable date: \"" + s + "\"");
+    }
+}
@@ -1,7 +1,5 @@
 package core;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 /**
@@ -27,28 +25,48 @@ public class Trip {
     public double total_amount;
 
     public Trip(String[] data) {
-        SimpleDateFormat sdf =  new SimpleDateFormat("yyyy-mm-dd hh:mm:ss");
-        try {
-            VendorID = Integer.valueOf(data[0]);
-            pickup_datetime = sdf.parse(data[1]);
-            dropoff_datetime = sdf.parse(data[2]);
-            passenger_count = Integer.valueOf(data[3]);
-            trip_distance = Double.valueOf(data[4]);
-            pickup_location = new Location(Double.valueOf(data[5]), Double.valueOf(data[6]));
-            RatecodeID = Integer.valueOf(data[7]);
-            store_and_fwd_flag = data[8].equals("Y");
-            dropoff_location = new Location(Double.valueOf(data[9]), Double.valueOf(data[10]));
-            payment_type = data[11];
-            fare_amount = Double.valueOf(data[12]);
-            extra = Double.valueOf(data[13]);
-            mta_tax = Double.valueOf(data[14]);
-            tip_amount = Double.valueOf(data[15]);
-            tolls_amount = Double.valueOf(data[16]);
-            improvement_surcharge = Double.valueOf(data[17]);
-            total_amount = Double.valueOf(data[18]);
-        } catch (ParseException e) {
-            e.printStackTrace();
-        }
+        VendorID = Integer.valueOf(data[0]);
+        pickup_datetime = new Date(TimestampParser.LOCAL.parse(data[1]));
+        dropoff_datetime = new Date(TimestampParser.LOCAL.parse(data[2]));
+        passenger_count = Integer.valueOf(data[3]);
+        trip_distance = Double.valueOf(data[4]);
+        pickup_location = new Location(Double.valueOf(data[5]), Double.valueOf(data[6]));
+        RatecodeID = Integer.valueOf(data[7]);
+        store_and_fwd_flag = data[8].equals("Y");
+        dropoff_location = new Location(Double.valueOf(data[9]), Double.valueOf(data[10]));
+        payment_type = data[11];
+        fare_amount = Double.valueOf(data[12]);
+        extra = Double.valueOf(data[13]);
+        mta_tax = Double.valueOf(data[14]);
+        tip_amount = Double.valueOf(data[15]);
+        tolls_amount = Double.valueOf(data[16]);
+        improvement_surcharge = Double.valueOf(data[17]);
+        total_amount = Double.valueOf(data[18]);
 //        System.out.println(pickup_location + " => " + dropoff_location);
     }
+
+    /**
+     * Creates the trip stored in a row of a batch.
+     * @param batch The batch holding the trip
+     * @param i The row of the trip in the batch
+     */
+    public Trip(TripBatch batch, int i) {
+        VendorID = batch.VendorID[i];
+        pickup_datetime = new Date(batch.pickup_datetime[i]);
+        dropoff_datetime = new Date(batch.dropoff_datetime[i]);
+        passenger_count = batch.passenger_count[i];
+        trip_distance = batch.trip_distance[i];
+        pickup_location = new Location(batch.pickup_longitude[i], batch.pickup_latitude[i]);
+        RatecodeID = batch.RatecodeID[i];
+        store_and_fwd_flag = batch.store_and_fwd_flag[i];
+        dropoff_location = new Location(batch.dropoff_longitude[i], batch.dropoff_latitude[i]);
+        payment_type = Integer.toString(batch.payment_type[i]);
+        fare_amount = batch.fare_amount[i];
+        extra = batch.extra[i];
+        mta_tax = batch.mta_tax[i];
+        tip_amount = batch.tip_amount[i];
+        tolls_amount = batch.tolls_amount[i];
+        improvement_surcharge = batch.improvement_surcharge[i];
+        total_amount = batch.total_amount[i];
+    }
 }
@@ -0,0 +1,166 @@
+package core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A batch of trips stored column wise in primitive arrays, so thousands of trips can be passed around without
+ * creating an object per trip. Row i of the batch is made up of element i of every column, times are
+ * milliseconds since the epoch and payment types are stored as their TLC code (see {@link PaymentType}).
+ */
+public class TripBatch {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    public final byte[] VendorID;
+    public final long[] pickup_datetime;
+    public final long[] dropoff_datetime;
+    public final byte[] passenger_count;
+    public final double[] trip_distance;
+    public final double[] pickup_longitude;
+    public final double[] pickup_latitude;
+    public final byte[] RatecodeID;
+    public final boolean[] store_and_fwd_flag;
+    public final double[] dropoff_longitude;
+    public final double[] dropoff_latitude;
+    public final byte[] payment_type;
+    public final double[] fare_amount;
+    public final double[] extra;
+    public final double[] mta_tax;
+    public final double[] tip_amount;
+    public final double[] tolls_amount;
+    public final double[] improvement_surcharge;
+    public final double[] total_amount;
+
+    private int size = 0;
+
+    public TripBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TripBatch(int capacity) {
+        VendorID = new byte[capacity];
+        pickup_datetime = new long[capacity];
+        dropoff_datetime = new long[capacity];
+        passenger_count = new byte[capacity];
+        trip_distance = new double[capacity];
+        pickup_longitude = new double[capacity];
+        pickup_latitude = new double[capacity];
+        RatecodeID = new byte[capacity];
+        store_and_fwd_flag = new boolean[capacity];
+        dropoff_longitude = new double[capacity];
+        dropoff_latitude = new double[capacity];
+        payment_type = new byte[capacity];
+        fare_amount = new double[capacity];
+        extra = new double[capacity];
+        mta_tax = new double[capacity];
+        tip_amount = new double[capacity];
+        tolls_amount = new double[capacity];
+        improvement_surcharge = new double[capacity];
+        total_amount = new double[capacity];
+    }
+
+    /**
+     * @return The number of trips in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return VendorID.length;
+    }
+
+    public boolean isFull() {
+        return size == capacity();
+    }
+
+    /**
+     * Sets the number of trips in this batch, for readers that fill the columns directly.
+     * @param size The number of rows filled, at most the capacity
+     */
+    public void setSize(int size) {
+        if (size < 0 || size > capacity()) {
+            throw new IllegalArgumentException("Batch size " + size + " outside of [0, " + capacity() + "]");
+        }
+        this.size = size;
+    }
+
+    /**
+     * Empties the batch so it can be filled again. The columns are not cleared.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Parses a CSV row straight from a byte buffer and appends it to the batch.
+     * @param buf The buffer containing the row
+     * @param fieldStart Absolute offset of the first byte of every field; field i ends one byte (the delimiter)
+     *                   before fieldStart[i + 1], so the array holds one more entry than there are fields
+     */
+    public void add(ByteBuffer buf, int[] fieldStart) {
+        int i = size;
+        VendorID[i] = (byte) FieldParser.parseInt(buf, fieldStart[0], fieldStart[1] - 1);
+        pickup_datetime[i] = TimestampParser.LOCAL.parse(buf, fieldStart[1], fieldStart[2] - 1);
+        dropoff_datetime[i] = TimestampParser.LOCAL.parse(buf, fieldStart[2], fieldStart[3] - 1);
+        passenger_count[i] = (byte) FieldParser.parseInt(buf, fieldStart[3], fieldStart[4] - 1);
+        trip_distance[i] = FieldParser.parseDouble(buf, fieldStart[4], fieldStart[5] - 1);
+        pickup_longitude[i] = FieldParser.parseDouble(buf, fieldStart[5], fieldStart[6] - 1);
+        pickup_latitude[i] = FieldParser.parseDouble(buf, fieldStart[6], fieldStart[7] - 1);
+        RatecodeID[i] = (byte) FieldParser.parseInt(buf, fieldStart[7], fieldStart[8] - 1);
+        store_and_fwd_flag[i] = fieldStart[9] - 1 - fieldStart[8] == 1 && buf.get(fieldStart[8]) == 'Y';
+        dropoff_longitude[i] = FieldParser.parseDouble(buf, fieldStart[9], fieldStart[10] - 1);
+        dropoff_latitude[i] = FieldParser.parseDouble(buf, fieldStart[10], fieldStart[11] - 1);
+        payment_type[i] = paymentCode(buf, fieldStart[11], fieldStart[12] - 1);
+        fare_amount[i] = FieldParser.parseDouble(buf, fieldStart[12], fieldStart[13] - 1);
+        extra[i] = FieldParser.parseDouble(buf, fieldStart[13], fieldStart[14] - 1);
+        mta_tax[i] = FieldParser.parseDouble(buf, fieldStart[14], fieldStart[15] - 1);
+        tip_amount[i] = FieldParser.parseDouble(buf, fieldStart[15], fieldStart[16] - 1);
+        tolls_amount[i] = FieldParser.parseDouble(buf, fieldStart[16], fieldStart[17] - 1);
+        improvement_surcharge[i] = FieldParser.parseDouble(buf, fieldStart[17], fieldStart[18] - 1);
+        total_amount[i] = FieldParser.parseDouble(buf, fieldStart[18], fieldStart[19] - 1);
+        size++;
+    }
+
+    /**
+     * Appends a trip to the batch.
+     * @param t The trip, there must be room for it
+     */
+    public void add(Trip t) {
+        int i = size;
+        VendorID[i] = (byte) t.VendorID;
+        pickup_datetime[i] = t.pickup_datetime.getTime();
+        dropoff_datetime[i] = t.dropoff_datetime.getTime();
+        passenger_count[i] = (byte) t.passenger_count;
+        trip_distance[i] = t.trip_distance;
+        pickup_longitude[i] = t.pickup_location.longitude();
+        pickup_latitude[i] = t.pickup_location.latitude();
+        RatecodeID[i] = (byte) t.RatecodeID;
+        store_and_fwd_flag[i] = t.store_and_fwd_flag;
+        dropoff_longitude[i] = t.dropoff_location.longitude();
+        dropoff_latitude[i] = t.dropoff_location.latitude();
+        payment_type[i] = paymentCode(t.payment_type);
+        fare_amount[i] = t.fare_amount;
+        extra[i] = t.extra;
+        mta_tax[i] = t.mta_tax;
+        tip_amount[i] = t.tip_amount;
+        tolls_amount[i] = t.tolls_amount;
+        improvement_surcharge[i] = t.improvement_surcharge;
+        total_amount[i] = t.total_amount;
+        size++;
+    }
+
+    private static byte paymentCode(String code) {
+        try {
+            return PaymentType.fromCode(Integer.parseInt(code.trim())).code;
+        } catch (NumberFormatException e) {
+            return PaymentType.UNKNOWN.code;
+        }
+    }
+
+    private static byte paymentCode(ByteBuffer buf, int from, int to) {
+        if (to - from == 1 && buf.get(from) >= '0' && buf.get(from) <= '9') {
+            return PaymentType.fromCode(buf.get(from) - '0').code;
+        }
+        return PaymentType.UNKNOWN.code;
+    }
+}
@@ -0,0 +1,285 @@
+package core;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Spatial weights of the Getis-Ord statistic: the weight wij of every cell j in the neighbourhood of a cell i.
+ * Weights are separable, wij = wx(dx) * wy(dy) * wz(dz), so weighted neighbourhood sums can be computed one axis
+ * at a time. Binary weights give every cell of the neighbourhood weight 1; gaussian weights decay with the
+ * distance to the cell, with a separate scale for space and time.
+ *
+ * Near the border of the cube part of the neighbourhood is cut off, so sumWij and sumWij^2 differ per cell.
+ * {@link #tables(int, int, int)} precomputes them, together with the part of the denominator of the statistic
+ * that only depends on the weights, for a cube size.
+ */
+public final class Weights {
+    // Number of table sets kept per weights, one per cube size
+    private static final int CACHED_TABLES = 8;
+
+    public final Neighbourhood neighbourhood;
+    private final String name;
+    private final boolean binary;
+    // Weight per offset along each axis, at offset + radius
+    private final double[] wx, wy, wz;
+    private final Map<Long, Tables> tables = new LinkedHashMap<Long, Tables>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Tables> eldest) {
+            return size() > CACHED_TABLES;
+        }
+    };
+
+    private Weights(Neighbourhood neighbourhood, String name, boolean binary, double[] wx, double[] wy,
+                    double[] wz) {
+        this.neighbourhood = neighbourhood;
+        this.name = name;
+        this.binary = binary;
+        this.wx = wx;
+        this.wy = wy;
+        this.wz = wz;
+    }
+
+    /**
+     * @return Weights of 1 for every cell of the neighbourhood
+     */
+    public static Weights binary(Neighbourhood neighbourhood) {
+        return new Weights(neighbourhood, "binary", true,
+                ones(neighbourhood.rx), ones(neighbourhood.ry), ones(neighbourhood.rz));
+    }
+
+    /**
+     * @param sigma The distance in cells at which the weight has dropped to e^-1/2, along all axes
+     * @return Weights decaying with the distance d to the cell as e^(-d^2 / (2 sigma^2))
+     */
+    public static Weights gaussian(Neighbourhood neighbourhood, double sigma) {
+        return gaussian(neighbourhood, sigma, sigma);
+    }
+
+    /**
+     * @param sigmaSpace The distance in cells at which the weight has dropped to e^-1/2 along x and y
+     * @param sigmaTime The distance in slices at which the weight has dropped to e^-1/2 along time
+     * @return Weights decaying with the distance to the cell, with a different scale in space and time
+     */
+    public static Weights gaussian(Neighbourhood neighbourhood, double sigmaSpace, double sigmaTime) {
+        if (!(sigmaSpace > 0) || !(sigmaTime > 0)) {
+            throw new IllegalArgumentException("Invalid scale " + sigmaSpace + ", " + sigmaTime);
+        }
+        return new Weights(neighbourhood, "gaussian " + sigmaSpace + "/" + sigmaTime, false,
+                gaussian(neighbourhood.rx, sigmaSpace), gaussian(neighbourhood.ry, sigmaSpace),
+                gaussian(neighbourhood.rz, sigmaTime));
+    }
+
+    /**
+     * @return Whether every cell of the neighbourhood has weight 1
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return The weight of the cell at the given offset from the centre of the neighbourhood
+     */
+    public double weight(int dx, int dy, int dz) {
+        return wx[dx + neighbourhood.rx] * wy[dy + neighbourhood.ry] * wz[dz + neighbourhood.rz];
+    }
+
+    /**
+     * @return The weight along the time axis of a slice at the given offset
+     */
+    public double weightZ(int dz) {
+        return wz[dz + neighbourhood.rz];
+    }
+
+    /**
+     * Returns the weight tables of a cube size, computing them if they are not cached yet.
+     */
+    public synchronized Tables tables(int xSize, int ySize, int zSize) {
+        long key = ((long) xSize << 42) ^ ((long) ySize << 21) ^ zSize;
+        Tables t = tables.get(key);
+        if (t == null || t.xSize != xSize || t.ySize != ySize || t.zSize != zSize) {
+            t = new Tables(xSize, ySize, zSize);
+            tables.put(key, t);
+        }
+        return t;
+    }
+
+    /**
+     * Computes the weighted sum over the neighbourhood of every cell of a cube, one axis at a time. Every pass
+     * costs a multiplication per cell per offset, cells beyond the border of the cube are left out.
+     * @param pool The pool to run the passes on, or null to run them in the calling thread
+     * @return The sums, laid out like the cells of the cube
+     */
+    public double[] sum(IntSpaceTimeCube cube, ForkJoinPool pool) {
+        int cells = cube.xSize() * cube.ySize() * cube.zSize();
+        return sum(cube.array(), cube.xSize(), cube.ySize(), cube.zSize(), new double[cells], new double[cells],
+                pool);
+    }
+
+    /**
+     * Computes the weighted neighbourhood sums of cells laid out like a cube, see
+     * {@link #sum(IntSpaceTimeCube, ForkJoinPool)}, in buffers that can be reused between calls.
+     * @param a Receives the sums
+     * @param b Scratch space of the same size
+     * @return a
+     */
+    double[] sum(int[] in, int xSize, int ySize, int zSize, double[] a, double[] b, ForkJoinPool pool) {
+        int sliceSize = xSize * ySize;
+        Slabs.run(pool, 0, zSize, 1, (slab, from, to) -> {
+            for (int i = from * sliceSize; i < to * sliceSize; i++) {
+                b[i] = in[i];
+            }
+            for (int row = from * ySize; row < to * ySize; row++) {
+                convolve(b, a, row * xSize, 1, 1, xSize, wx);
+            }
+            for (int z = from; z < to; z++) {
+                convolve(a, b, z * sliceSize, xSize, xSize, ySize, wy);
+            }
+        });
+        Slabs.run(pool, 0, sliceSize, 1024, (slab, from, to) ->
+                convolve(b, a, from, to - from, sliceSize, zSize, wz));
+        return a;
+    }
+
+    /**
+     * Computes the weighted sum over the spatial part of the neighbourhood of every cell of a single slice.
+     * @param cells The cells of the slice at x + xSize * y
+     * @return The sums, laid out like the cells
+     */
+    public double[] sumSlice(int[] cells, int xSize, int ySize) {
+        int sliceSize = xSize * ySize;
+        double[] a = new double[sliceSize], b = new double[sliceSize];
+        for (int i = 0; i < sliceSize; i++) {
+            b[i] = cells[i];
+        }
+        for (int row = 0; row < ySize; row++) {
+            convolve(b, a, row * xSize, 1, 1, xSize, wx);
+        }
+        convolve(a, b, 0, xSize, xSize, ySize, wy);
+        return b;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + (2 * neighbourhood.rx + 1) + "x" + (2 * neighbourhood.ry + 1) + "x"
+                + (2 * neighbourhood.rz + 1);
+    }
+
+    /**
+     * Writes the weighted sum of the window around every element of a run of blocks, see the running sum of
+     * {@link Neighbourhood}. Blocks are combined element wise.
+     * @param w The weight per offset, at offset + radius
+     */
+    private static void convolve(double[] in, double[] out, int from, int width, int stride, int length,
+                                 double[] w) {
+        int r = w.length / 2;
+        for (int j = 0; j < length; j++) {
+            int current = from + j * stride;
+            for (int i = 0; i < width; i++) {
+                out[current + i] = 0;
+            }
+            for (int d = Math.max(-r, -j); d <= Math.min(r, length - 1 - j); d++) {
+                int source = current + d * stride;
+                double weight = w[d + r];
+                for (int i = 0; i < width; i++) {
+                    out[current + i] += weight * in[source + i];
+                }
+            }
+        }
+    }
+
+    private static double[] ones(int r) {
+        double[] w = new double[2 * r + 1];
+        Arrays.fill(w, 1);
+        return w;
+    }
+
+    private static double[] gaussian(int r, double sigma) {
+        double[] w = new double[2 * r + 1];
+        for (int d = -r; d <= r; d++) {
+            w[d + r] = Math.exp(-(double) d * d / (2 * sigma * sigma));
+        }
+        return w;
+    }
+
+    /**
+     * Sums of the weights of the part of the neighbourhood inside the cube, along one axis.
+     * @param power 1 for the sum of the weights, 2 for the sum of their squares
+     */
+    private static double[] axisSums(double[] w, int size, int power) {
+        int r = w.length / 2;
+        double[] sums = new double[size];
+        for (int i = 0; i < size; i++) {
+            for (int d = Math.max(-r, -i); d <= Math.min(r, size - 1 - i); d++) {
+                sums[i] += power == 1 ? w[d + r] : w[d + r] * w[d + r];
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * The per cell weight terms of the statistic for a cube size. Slices whose neighbourhood is cut off the same
+     * way along time share their tables, so a cube of more than 2 rz slices has 2 rz + 1 different slice tables.
+     */
+    public final class Tables {
+        public final int xSize, ySize, zSize;
+        private final double[][] sumWij, deviation;
+        private final int[] sliceTable;
+
+        private Tables(int xSize, int ySize, int zSize) {
+            this.xSize = xSize;
+            this.ySize = ySize;
+            this.zSize = zSize;
+            double n = (double) xSize * ySize * zSize;
+
+            double[] sx = axisSums(wx, xSize, 1), sy = axisSums(wy, ySize, 1), sz = axisSums(wz, zSize, 1);
+            double[] sx2 = axisSums(wx, xSize, 2), sy2 = axisSums(wy, ySize, 2), sz2 = axisSums(wz, zSize, 2);
+
+            // Slices whose neighbourhood reaches equally far back and ahead share a table
+            int rz = neighbourhood.rz;
+            int[] tableOf = new int[(rz + 1) * (rz + 1)];
+            Arrays.fill(tableOf, -1);
+            sliceTable = new int[zSize];
+            sumWij = new double[Math.min(zSize, tableOf.length)][];
+            deviation = new double[sumWij.length][];
+            int tableCount = 0;
+            for (int z = 0; z < zSize; z++) {
+                int pattern = Math.min(z, rz) * (rz + 1) + Math.min(zSize - 1 - z, rz);
+                if (tableOf[pattern] != -1) {
+                    sliceTable[z] = tableOf[pattern];
+                    continue;
+                }
+                int table = tableCount++;
+                tableOf[pattern] = table;
+                sliceTable[z] = table;
+
+                double[] w = new double[xSize * ySize], dev = new double[xSize * ySize];
+                for (int y = 0; y < ySize; y++) {
+                    for (int x = 0; x < xSize; x++) {
+                        double sum = sx[x] * sy[y] * sz[z], sum2 = sx2[x] * sy2[y] * sz2[z];
+                        w[x + xSize * y] = sum;
+                        dev[x + xSize * y] = Math.sqrt((n * sum2 - sum * sum) / (n - 1));
+                    }
+                }
+                sumWij[table] = w;
+                deviation[table] = dev;
+            }
+        }
+
+        /**
+         * @return sumWij of the cells of a slice, at x + xSize * y
+         */
+        public double[] sumWij(int z) {
+            return sumWij[sliceTable[z]];
+        }
+
+        /**
+         * @return sqrt((n sumWij^2 - sumWij^2) / (n - 1)) of the cells of a slice, at x + xSize * y. The
+         *         denominator of the statistic is S times this.
+         */
+        public double[] deviation(int z) {
+            return deviation[sliceTable[z]];
+        }
+    }
+}
@@ -8,6 +8,9 @@ const select = document.getElementById("select");
 window.initMap = function() {
     console.log(select.value);
     d3.select("#vis canvas").remove("*");
+    if (select.value === "tiles") {
+        return initTiles();
+    }
     d3.json(select.value + ".json", function (error, data) {
         if (error) throw error;
         var google = window.google;
@@ -93,6 +96,57 @@ window.initMap = function() {
     });
 };
 
+// Draws the point density tiles written by QuadTreeComputer, fetching only the tiles visible at the zoom
+function initTiles() {
+    d3.json("tiles/manifest.json", function (error, manifest) {
+        if (error) throw error;
+        const tiles = new TileLayer(manifest, (level, x, y) => "tiles/" + manifest.tiles.path
+            .replace("{level}", level).replace("{x}", x).replace("{y}", y));
+        // Counts add up when zooming out, so the scale is per point per grid cell
+        const color = d3.scale.log().domain([1, 10, 100, 1000]).range(["blue", "green", "yellow", "red"]).clamp(true);
+
+        const map = new google.maps.Map(d3.select("#map").node(), {
+            zoom: 12,
+            center: new google.maps.LatLng(40.75, -73.99),
+            mapTypeId: google.maps.MapTypeId.TERRAIN
+        });
+        const overlay = new google.maps.OverlayView();
+        let canvas = null;
+        let drawn = 0;
+
+        overlay.onAdd = function () {
+            canvas = d3.select("#vis").append("canvas")
+                .style("position", "absolute")
+                .style("top", 0)
+                .style("left", 0)
+                .style("width", "100%")
+                .style("height", "100%")
+                .style("pointer-events", "none");
+            map.addListener('idle', () => this.draw());
+        };
+
+        overlay.draw = function () {
+            const bounds = map.getBounds();
+            if (!canvas || !bounds) {
+                return;
+            }
+            canvas
+                .attr("width", canvas.node().offsetWidth)
+                .attr("height", canvas.node().offsetHeight);
+            const context = canvas.node().getContext('2d');
+            context.clearRect(0, 0, canvas.node().width, canvas.node().height);
+            context.globalAlpha = 0.6;
+
+            const draw = ++drawn;
+            tiles.draw(context, this.getProjection(), bounds, 4, (value, level) => {
+                const density = value / Math.pow(tiles.span(level), 2);
+                return density > 0 ? color(Math.max(1, density)) : null;
+            }, () => draw === drawn);
+        };
+        overlay.setMap(map);
+    });
+}
+
 function timeoutDraw(ctx) {
     // Resize canvas to screen size
     ctx.canvas
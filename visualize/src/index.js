@@ -10,115 +10,64 @@ const map = new google.maps.Map(d3.select("#map").node(), {
 
 const overlay = new google.maps.OverlayView();
 const select = document.getElementById("timeselect");
-const topLeftX = 40.9;
-const topLeftY = -74.25;
-const bottomRightX = 40.5;
-const bottomRightY = -73.7;
-
-d3.json("results.json", function(error, data) {
+// Written by GetisOrdComputer, see SliceWriter and TilePyramid
+const results = "results/";
+const layer = "gi";
+// Levels whose cells are narrower than this many pixels are drawn from the level above
+const minCellPixels = 4;
+const color = d3.scale.linear().domain([-1, 1, 5, 40]).range(["blue", "green", "yellow", "red"]);
+
+d3.json(results + "manifest.json", function(error, manifest) {
     if (error) throw error;
 
-    for (let key in data) {
+    manifest.slices.forEach(function (slice, z) {
         let option = document.createElement("option");
-        option.text = key;
+        option.text = new Date(slice.start).toISOString();
+        option.value = z;
         select.add(option);
-    }
-
-    overlay.draw = function () {
-        const value = data[select.value];
-        d3.selectAll(".gridOverlay").remove();
-        const layer = d3.select(this.getPanes().overlayLayer).append("div")
-            .attr("class", "gridOverlay");
-
-        const projection = this.getProjection();
-        const gridSize = 200;
-        const deltaLat = (bottomRightX - topLeftX) / gridSize;
-        const deltaLon = (bottomRightY - topLeftY) / gridSize;
-		
-        let grid = [];
-        for (let i = 0; i < gridSize; i++) {
-            for (let j = 0; j < gridSize; j++) {
-                grid.push({lat: topLeftX + deltaLat * i, lon: topLeftY + deltaLon * j, value: value[j + i * gridSize]});
-            }
-        }
-		
-		//var hotspots = grid;
-		var hotspots = getTopN(grid, "value", 500);
-
-        layer.selectAll(".border")
-            .data([{lat: topLeftX, lon: topLeftY}])
-            .each(transformBorder)
-            .enter()
-            .append("rect")
-            .attr({
-                "class": "border",
-                "fill": "none",
-                "shape-rendering": "crispEdges",
-                "stroke": "red",
-                "stroke-width": "4px"
-            }).each(transformBorder);
-
-        const tile = layer.selectAll("svg")
-            .data(hotspots)
-
-        tile.enter()
-            .append("svg")
-            .each(transformTile)
-            .attr("class", "grid");
-
-        tile.append("rect")
-            .attr(
-                {
-                    "class": "tile",
-                    "fill": "none",
-                    "shape-rendering": "crispEdges",
-                    "stroke": "black",
-                    "stroke-width": "1px"
-                })
-            .each(transformTile);
-			
-		function getTopN(arr, prop, n) {
-			var clone = arr.slice(0);
-			clone.sort(function(x, y) {
-				if (x[prop] == y[prop]) return 0;
-				else if (parseInt(x[prop]) < parseInt(y[prop])) return 1;
-				else return -1;
-			});
-			return clone.slice(0, n || 1);
-		}
-
-        function transformBorder(d) {
-            let topLeft = new google.maps.LatLng(d.lat, d.lon);
-            let bottomRight = new google.maps.LatLng(d.lat + deltaLat * gridSize, d.lon + deltaLon * gridSize);
-
-            topLeft = projection.fromLatLngToDivPixel(topLeft);
-            bottomRight = projection.fromLatLngToDivPixel(bottomRight);
-
-            return d3.select(this)
-                .style("left", (topLeft.x) + "px")
-                .style("top", (topLeft.y) + "px")
-                .style("width", (topLeft.x - bottomRight.x) + "px")
-                .style("height", (topLeft.y - bottomRight.y) + "px")
+    });
+
+    // A tile layer per slice, so a slice keeps the tiles it fetched
+    const tileLayers = {};
+    function tilesOf(z) {
+        if (!tileLayers[z]) {
+            tileLayers[z] = new TileLayer(manifest, (level, x, y) => results + manifest.tiles.path
+                .replace("{layer}", layer).replace("{slice}", z).replace("{level}", level)
+                .replace("{x}", x).replace("{y}", y));
         }
+        return tileLayers[z];
+    }
 
-        function transformTile(d) {
-            let color = d3.scale.linear().domain([-1, 1,5, 40]).range(["blue", "green", "yellow", "red"]);
-            let topLeft = new google.maps.LatLng(d.lat, d.lon);
-            let bottomRight = new google.maps.LatLng(d.lat + deltaLat, d.lon + deltaLon);
-
-            topLeft = projection.fromLatLngToDivPixel(topLeft);
-            bottomRight = projection.fromLatLngToDivPixel(bottomRight);
-
-            
+    let canvas = null;
+    // Tiles that come in after the map or the slice changed are not drawn
+    let drawn = 0;
+
+    overlay.onAdd = function () {
+        canvas = d3.select("#vis").append("canvas")
+            .style("position", "absolute")
+            .style("top", 0)
+            .style("left", 0)
+            .style("width", "100%")
+            .style("height", "100%")
+            .style("pointer-events", "none");
+        map.addListener('idle', () => this.draw());
+    };
 
-            return d3.select(this)
-                .style("left", (topLeft.x) + "px")
-                .style("top", (topLeft.y) + "px")
-                .style("width", (bottomRight.x - topLeft.x) + "px")
-                .style("height", (bottomRight.y - topLeft.y) + "px")
-                .style("opacity", 0.6)
-                .style("background-color", color(d.value));
+    overlay.draw = function () {
+        const bounds = map.getBounds();
+        if (!canvas || !bounds) {
+            return;
         }
+        canvas
+            .attr("width", canvas.node().offsetWidth)
+            .attr("height", canvas.node().offsetHeight);
+        const context = canvas.node().getContext('2d');
+        context.clearRect(0, 0, canvas.node().width, canvas.node().height);
+        context.globalAlpha = 0.6;
+
+        const draw = ++drawn;
+        tilesOf(select.value).draw(context, this.getProjection(), bounds, minCellPixels,
+            (value) => color(value), () => draw === drawn);
     };
     overlay.setMap(map);
 });
@@ -126,4 +75,4 @@ d3.json("results.json", function(error, data) {
 
 function timeChange() {
     overlay.draw()
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+'use strict';
+
+// Fetches and draws the tiles of a pyramid written by TilePyramid. At level l the grid of the manifest is covered by
+// 2^l x 2^l tiles of size x size little endian float32 cells, cell (x, y) at x + size * y; the deepest level holds
+// the cells of the grid itself. Missing tiles are empty.
+function TileLayer(manifest, url) {
+    this.manifest = manifest;
+    // Gives the url of a tile from its level, x and y
+    this.url = url;
+    // Fetched tiles by level/x/y, null for empty tiles
+    this.cache = {};
+}
+
+// Number of grid cells a cell of a level spans
+TileLayer.prototype.span = function (level) {
+    return 1 << (this.manifest.tiles.levels - 1 - level);
+};
+
+// Picks the deepest level whose cells are at least minPixels wide on screen
+TileLayer.prototype.level = function (proj, minPixels) {
+    const m = this.manifest;
+    const p1 = proj.fromLatLngToContainerPixel(new google.maps.LatLng(m.latMin, m.lonMin));
+    const p2 = proj.fromLatLngToContainerPixel(new google.maps.LatLng(m.latMax, m.lonMax));
+    const pixelsPerCell = Math.min(Math.abs(p2.y - p1.y) / m.xSize, Math.abs(p2.x - p1.x) / m.ySize);
+    let level = m.tiles.levels - 1;
+    while (level > 0 && pixelsPerCell * this.span(level) < minPixels) {
+        level--;
+    }
+    return level;
+};
+
+// Calls back with every tile of a level that overlaps the bounds, fetching the tiles that are not cached yet
+TileLayer.prototype.visible = function (level, bounds, callback) {
+    const m = this.manifest;
+    const tileCells = m.tiles.size * this.span(level);
+    const toX = (lat) => (lat - m.latMin) / (m.latMax - m.latMin) * m.xSize;
+    const toY = (lon) => (lon - m.lonMin) / (m.lonMax - m.lonMin) * m.ySize;
+    const ne = bounds.getNorthEast(), sw = bounds.getSouthWest();
+    const x1 = Math.max(0, Math.min(toX(ne.lat()), toX(sw.lat())));
+    const x2 = Math.min(m.xSize - 1, Math.max(toX(ne.lat()), toX(sw.lat())));
+    const y1 = Math.max(0, toY(sw.lng()));
+    const y2 = Math.min(m.ySize - 1, toY(ne.lng()));
+
+    for (let tx = Math.floor(x1 / tileCells); tx <= Math.floor(x2 / tileCells); tx++) {
+        for (let ty = Math.floor(y1 / tileCells); ty <= Math.floor(y2 / tileCells); ty++) {
+            this.fetch(level, tx, ty, (tile) => {
+                if (tile) {
+                    callback(tile, tx, ty);
+                }
+            });
+        }
+    }
+};
+
+TileLayer.prototype.fetch = function (level, tx, ty, callback) {
+    const key = level + "/" + tx + "/" + ty;
+    if (key in this.cache) {
+        return callback(this.cache[key]);
+    }
+    d3.xhr(this.url(level, tx, ty)).responseType("arraybuffer").get((error, xhr) => {
+        let tile = null;
+        if (!error) {
+            const view = new DataView(xhr.response);
+            tile = new Float32Array(view.byteLength / 4);
+            for (let i = 0; i < tile.length; i++) {
+                tile[i] = view.getFloat32(4 * i, true);
+            }
+        }
+        this.cache[key] = tile;
+        callback(tile);
+    });
+};
+
+// Draws the visible tiles of the level that suits the zoom as they come in. style gives the fill of a cell value,
+// or null to leave the cell out; drawing stops once isCurrent returns false.
+TileLayer.prototype.draw = function (context, proj, bounds, minPixels, style, isCurrent) {
+    const m = this.manifest;
+    const size = m.tiles.size;
+    const level = this.level(proj, minPixels);
+    const span = this.span(level);
+    const deltaLat = (m.latMax - m.latMin) / m.xSize;
+    const deltaLon = (m.lonMax - m.lonMin) / m.ySize;
+
+    this.visible(level, bounds, (tile, tx, ty) => {
+        if (!isCurrent()) {
+            return;
+        }
+        for (let cy = 0; cy < size; cy++) {
+            for (let cx = 0; cx < size; cx++) {
+                const value = tile[cx + size * cy];
+                const fill = isNaN(value) ? null : style(value, level);
+                if (fill === null) {
+                    continue;
+                }
+                const x = (tx * size + cx) * span, y = (ty * size + cy) * span;
+                const p1 = proj.fromLatLngToContainerPixel(
+                    new google.maps.LatLng(m.latMin + deltaLat * x, m.lonMin + deltaLon * y));
+                const p2 = proj.fromLatLngToContainerPixel(new google.maps.LatLng(
+                    m.latMin + deltaLat * Math.min(m.xSize, x + span), m.lonMin + deltaLon * Math.min(m.ySize, y + span)));
+                context.fillStyle = fill;
+                context.fillRect(Math.min(p1.x, p2.x), Math.min(p1.y, p2.y),
+                    Math.abs(p2.x - p1.x), Math.abs(p2.y - p1.y));
+            }
+        }
+    });
+};